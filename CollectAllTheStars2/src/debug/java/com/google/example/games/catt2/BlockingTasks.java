@@ -0,0 +1,75 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Blocks until a task completes, like {@link com.google.android.gms.tasks.Tasks#await(Task, long,
+ * TimeUnit)}.
+ * <p/>
+ * Tasks.await refuses to run on what it takes to be the main thread, and on a plain JVM, where
+ * there is no Looper, every thread looks like the main thread to it.  This waits on a latch
+ * instead, so the harnesses run the same on a device and in local unit tests.
+ */
+final class BlockingTasks {
+
+  // Runs the completion listener on whichever thread completes the task.
+  private static final Executor DIRECT = new Executor() {
+    @Override
+    public void execute(@NonNull Runnable runnable) {
+      runnable.run();
+    }
+  };
+
+  private BlockingTasks() {
+  }
+
+  /**
+   * Waits for the task and returns its result.
+   *
+   * @throws ExecutionException if the task failed; the cause is the task's exception.
+   * @throws TimeoutException   if the task did not complete in time.
+   */
+  static <T> T await(Task<T> task, long timeout, TimeUnit unit)
+      throws ExecutionException, InterruptedException, TimeoutException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    task.addOnCompleteListener(DIRECT, new OnCompleteListener<T>() {
+      @Override
+      public void onComplete(@NonNull Task<T> task) {
+        latch.countDown();
+      }
+    });
+    if (!latch.await(timeout, unit)) {
+      throw new TimeoutException("Task did not complete within " + unit.toMillis(timeout) + "ms");
+    }
+    if (task.isCanceled()) {
+      throw new CancellationException("Task was cancelled");
+    }
+    if (!task.isSuccessful()) {
+      throw new ExecutionException(task.getException());
+    }
+    return task.getResult();
+  }
+}
@@ -0,0 +1,656 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import android.content.Intent;
+
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.games.AnnotatedData;
+import com.google.android.gms.games.SnapshotsClient;
+import com.google.android.gms.games.snapshot.Snapshot;
+import com.google.android.gms.games.snapshot.SnapshotContents;
+import com.google.android.gms.games.snapshot.SnapshotMetadata;
+import com.google.android.gms.games.snapshot.SnapshotMetadataBuffer;
+import com.google.android.gms.games.snapshot.SnapshotMetadataChange;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory SnapshotBackend used to exercise the SnapshotCoordinator without Play services.
+ * <p/>
+ * Every file operation completes on a scheduler thread after a delay drawn from the configured
+ * {@link LatencyModel}, and can be made to fail or, for opens of existing files, to return a
+ * conflict.  The backend also counts what it saw, in particular overlapping opens of the same
+ * file, which the coordinator exists to prevent.
+ * <p/>
+ * Snapshot, SnapshotMetadata and SnapshotContents are interfaces with a number of methods that
+ * only matter to the real client, so the objects handed out here are dynamic proxies that answer
+ * the calls the coordinator and the game make and return default values for everything else.
+ */
+public class FakeSnapshotBackend implements SnapshotBackend {
+
+  private static final int MAX_DATA_SIZE = 3 * 1024 * 1024;
+  private static final int MAX_COVER_IMAGE_SIZE = 800 * 1024;
+
+  /**
+   * Produces the simulated service time of one backend call.
+   */
+  public interface LatencyModel {
+    long nextDelayMicros(Random random);
+  }
+
+  public static LatencyModel fixedLatency(final long micros) {
+    return new LatencyModel() {
+      @Override
+      public long nextDelayMicros(Random random) {
+        return micros;
+      }
+    };
+  }
+
+  public static LatencyModel uniformLatency(final long minMicros, final long maxMicros) {
+    return new LatencyModel() {
+      @Override
+      public long nextDelayMicros(Random random) {
+        return minMicros + (long) (random.nextDouble() * (maxMicros - minMicros));
+      }
+    };
+  }
+
+  public static LatencyModel exponentialLatency(final double meanMicros) {
+    return new LatencyModel() {
+      @Override
+      public long nextDelayMicros(Random random) {
+        return (long) (-meanMicros * Math.log(1.0 - random.nextDouble()));
+      }
+    };
+  }
+
+  /**
+   * Long-tailed latency, which is closer to what a network service looks like than the others.
+   */
+  public static LatencyModel logNormalLatency(final double medianMicros, final double sigma) {
+    return new LatencyModel() {
+      @Override
+      public long nextDelayMicros(Random random) {
+        return (long) (medianMicros * Math.exp(sigma * random.nextGaussian()));
+      }
+    };
+  }
+
+  // The stored state of a file.  Guarded by the backend's lock.
+  private static class FileRecord {
+    byte[] data = new byte[0];
+    long revision;
+    long lastModified;
+    String description;
+    long progressValue = -1;
+  }
+
+  private final ScheduledExecutorService scheduler;
+  private final Random random;
+
+  private volatile LatencyModel latency = fixedLatency(0);
+  private volatile double failureRate;
+  private volatile int failureStatusCode = CommonStatusCodes.NETWORK_ERROR;
+  private volatile double conflictRate;
+
+  private final Map<String, FileRecord> files = new HashMap<>();
+  private final Map<String, Integer> openHandles = new HashMap<>();
+  private final Map<String, Handle> conflicts = new HashMap<>();
+  private long nextId;
+
+  private final AtomicLong opens = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong discards = new AtomicLong();
+  private final AtomicLong deletes = new AtomicLong();
+  private final AtomicLong failuresInjected = new AtomicLong();
+  private final AtomicLong conflictsInjected = new AtomicLong();
+  private final AtomicLong overlappingOpens = new AtomicLong();
+  private final AtomicLong invalidCloses = new AtomicLong();
+
+  public FakeSnapshotBackend() {
+    this(4, System.nanoTime());
+  }
+
+  public FakeSnapshotBackend(int threads, long seed) {
+    scheduler = Executors.newScheduledThreadPool(threads);
+    random = new Random(seed);
+  }
+
+  public FakeSnapshotBackend setLatency(LatencyModel latency) {
+    this.latency = latency;
+    return this;
+  }
+
+  /**
+   * Sets the probability that a file operation fails with an ApiException carrying the
+   * given status code.
+   */
+  public FakeSnapshotBackend setFailureRate(double failureRate, int statusCode) {
+    this.failureRate = failureRate;
+    this.failureStatusCode = statusCode;
+    return this;
+  }
+
+  /**
+   * Sets the probability that opening an existing file reports a conflict.
+   */
+  public FakeSnapshotBackend setConflictRate(double conflictRate) {
+    this.conflictRate = conflictRate;
+    return this;
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  public long getOpenCount() {
+    return opens.get();
+  }
+
+  public long getCommitCount() {
+    return commits.get();
+  }
+
+  public long getDiscardCount() {
+    return discards.get();
+  }
+
+  public long getDeleteCount() {
+    return deletes.get();
+  }
+
+  public long getFailuresInjected() {
+    return failuresInjected.get();
+  }
+
+  public long getConflictsInjected() {
+    return conflictsInjected.get();
+  }
+
+  /**
+   * Returns how many times a file was opened while a previous open of it was still outstanding.
+   */
+  public long getOverlappingOpenCount() {
+    return overlappingOpens.get();
+  }
+
+  /**
+   * Returns how many commits or discards were made with a snapshot that was already closed.
+   */
+  public long getInvalidCloseCount() {
+    return invalidCloses.get();
+  }
+
+  /**
+   * Returns the number of opens of the given file that have not been closed yet.
+   */
+  public synchronized int getOpenHandleCount(String filename) {
+    Integer count = openHandles.get(filename);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Returns the committed contents of the given file, or null if it does not exist.
+   */
+  public synchronized byte[] getCommittedData(String filename) {
+    FileRecord record = files.get(filename);
+    return record == null ? null : Arrays.copyOf(record.data, record.data.length);
+  }
+
+  @Override
+  public Task<Integer> getMaxDataSize() {
+    TaskCompletionSource<Integer> source = new TaskCompletionSource<>();
+    source.setResult(MAX_DATA_SIZE);
+    return source.getTask();
+  }
+
+  @Override
+  public Task<Integer> getMaxCoverImageSize() {
+    TaskCompletionSource<Integer> source = new TaskCompletionSource<>();
+    source.setResult(MAX_COVER_IMAGE_SIZE);
+    return source.getTask();
+  }
+
+  @Override
+  public Task<Intent> getSelectSnapshotIntent(String title, boolean allowAddButton,
+                                              boolean allowDelete, int maxSnapshots) {
+    TaskCompletionSource<Intent> source = new TaskCompletionSource<>();
+    source.setException(new UnsupportedOperationException("no UI in the fake backend"));
+    return source.getTask();
+  }
+
+  @Override
+  public Task<AnnotatedData<SnapshotMetadataBuffer>> load(boolean forceReload) {
+    // goes through the latency and failure model like a real call, so it can serve as a probe.
+    return schedule(new Callable<AnnotatedData<SnapshotMetadataBuffer>>() {
+      @Override
+      public AnnotatedData<SnapshotMetadataBuffer> call() throws Exception {
+        throw new UnsupportedOperationException("metadata buffers are not faked");
+      }
+    });
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(String filename,
+                                                             boolean createIfNotFound) {
+    return open(filename, createIfNotFound, SnapshotsClient.RESOLUTION_POLICY_MANUAL);
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final String filename,
+                                                             final boolean createIfNotFound,
+                                                             final int conflictPolicy) {
+    return schedule(new Callable<SnapshotsClient.DataOrConflict<Snapshot>>() {
+      @Override
+      public SnapshotsClient.DataOrConflict<Snapshot> call() throws Exception {
+        return doOpen(filename, createIfNotFound, conflictPolicy);
+      }
+    });
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotMetadata snapshotMetadata) {
+    return open(snapshotMetadata.getUniqueName(), false);
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotMetadata snapshotMetadata,
+                                                             int conflictPolicy) {
+    return open(snapshotMetadata.getUniqueName(), false, conflictPolicy);
+  }
+
+  @Override
+  public Task<SnapshotMetadata> commitAndClose(final Snapshot snapshot,
+                                               final SnapshotMetadataChange snapshotMetadataChange) {
+    return schedule(new Callable<SnapshotMetadata>() {
+      @Override
+      public SnapshotMetadata call() throws Exception {
+        return doCommit(handleOf(snapshot), snapshotMetadataChange);
+      }
+    }, snapshot);
+  }
+
+  @Override
+  public Task<Void> discardAndClose(final Snapshot snapshot) {
+    return schedule(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        release(handleOf(snapshot));
+        discards.incrementAndGet();
+        return null;
+      }
+    }, snapshot);
+  }
+
+  @Override
+  public Task<String> delete(final SnapshotMetadata snapshotMetadata) {
+    return schedule(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        String filename = snapshotMetadata.getUniqueName();
+        synchronized (FakeSnapshotBackend.this) {
+          if (getOpenHandleCount(filename) > 0) {
+            overlappingOpens.incrementAndGet();
+          }
+          if (files.remove(filename) == null) {
+            throw new ApiException(new Status(CommonStatusCodes.DEVELOPER_ERROR,
+                filename + " does not exist"));
+          }
+        }
+        deletes.incrementAndGet();
+        return snapshotMetadata.getSnapshotId();
+      }
+    });
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> resolveConflict(final String conflictId,
+                                                                        final Snapshot snapshot) {
+    return schedule(new Callable<SnapshotsClient.DataOrConflict<Snapshot>>() {
+      @Override
+      public SnapshotsClient.DataOrConflict<Snapshot> call() throws Exception {
+        return doResolve(conflictId, handleOf(snapshot).contents);
+      }
+    });
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> resolveConflict(final String conflictId,
+                                                                        String snapshotId,
+                                                                        SnapshotMetadataChange snapshotMetadataChange,
+                                                                        final SnapshotContents snapshotContents) {
+    return schedule(new Callable<SnapshotsClient.DataOrConflict<Snapshot>>() {
+      @Override
+      public SnapshotsClient.DataOrConflict<Snapshot> call() throws Exception {
+        return doResolve(conflictId, handleOf(snapshotContents).contents);
+      }
+    });
+  }
+
+  private <T> Task<T> schedule(Callable<T> operation) {
+    return schedule(operation, null);
+  }
+
+  /**
+   * Runs the operation after a simulated delay.  If a failure is injected into a commit or discard
+   * the snapshot being closed is released anyway, since a failed close still closes the file.
+   */
+  private <T> Task<T> schedule(final Callable<T> operation, final Snapshot closing) {
+    final TaskCompletionSource<T> source = new TaskCompletionSource<>();
+    final boolean fail = random.nextDouble() < failureRate;
+    final int statusCode = failureStatusCode;
+
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (fail) {
+          failuresInjected.incrementAndGet();
+          if (closing != null) {
+            releaseQuietly(handleOf(closing));
+          }
+          source.setException(new ApiException(new Status(statusCode, "injected failure")));
+          return;
+        }
+        try {
+          source.setResult(operation.call());
+        } catch (Exception e) {
+          source.setException(e);
+        }
+      }
+    }, latency.nextDelayMicros(random), TimeUnit.MICROSECONDS);
+
+    return source.getTask();
+  }
+
+  private SnapshotsClient.DataOrConflict<Snapshot> doOpen(String filename,
+                                                          boolean createIfNotFound,
+                                                          int conflictPolicy)
+      throws ApiException {
+    Handle handle;
+    Handle conflicting = null;
+    String conflictId = null;
+
+    synchronized (this) {
+      FileRecord record = files.get(filename);
+      if (record == null) {
+        if (!createIfNotFound) {
+          throw new ApiException(new Status(CommonStatusCodes.DEVELOPER_ERROR,
+              filename + " does not exist"));
+        }
+        record = recordFor(filename);
+      }
+
+      if (getOpenHandleCount(filename) > 0) {
+        overlappingOpens.incrementAndGet();
+      }
+      openHandles.put(filename, getOpenHandleCount(filename) + 1);
+      opens.incrementAndGet();
+
+      handle = new Handle(nextId++, filename, record);
+      if (conflictPolicy == SnapshotsClient.RESOLUTION_POLICY_MANUAL
+          && record.revision > 0 && random.nextDouble() < conflictRate) {
+        conflicting = new Handle(nextId++, filename, record);
+        conflicting.closed = true;
+        conflictId = "conflict-" + handle.id;
+        conflicts.put(conflictId, handle);
+      }
+    }
+
+    if (conflicting == null) {
+      return new SnapshotsClient.DataOrConflict<>(handle.snapshot, null);
+    }
+    conflictsInjected.incrementAndGet();
+    return new SnapshotsClient.DataOrConflict<>(null,
+        new SnapshotsClient.SnapshotConflict(handle.snapshot, conflictId,
+            conflicting.snapshot, conflicting.snapshot.getSnapshotContents()));
+  }
+
+  // The resolved contents become the committed version and the file is handed back opened, which
+  // may conflict again.
+  private SnapshotsClient.DataOrConflict<Snapshot> doResolve(String conflictId, byte[] resolved)
+      throws ApiException {
+    Handle conflicted;
+    synchronized (this) {
+      conflicted = conflicts.remove(conflictId);
+    }
+    if (conflicted == null) {
+      throw new ApiException(new Status(CommonStatusCodes.DEVELOPER_ERROR,
+          "unknown conflict " + conflictId));
+    }
+
+    String filename = conflicted.filename;
+    release(conflicted);
+    synchronized (this) {
+      FileRecord record = recordFor(filename);
+      record.data = resolved;
+      record.revision++;
+      record.lastModified = System.currentTimeMillis();
+    }
+    return doOpen(filename, false, SnapshotsClient.RESOLUTION_POLICY_MANUAL);
+  }
+
+  private SnapshotMetadata doCommit(Handle handle, SnapshotMetadataChange change) {
+    release(handle);
+    synchronized (this) {
+      FileRecord record = recordFor(handle.filename);
+      record.data = handle.contents;
+      record.revision++;
+      record.lastModified = System.currentTimeMillis();
+      if (change != null && change.getDescription() != null) {
+        record.description = change.getDescription();
+      }
+      if (change != null && change.getProgressValue() != null) {
+        record.progressValue = change.getProgressValue();
+      }
+      commits.incrementAndGet();
+      return new Handle(-1, handle.filename, record).metadata;
+    }
+  }
+
+  private synchronized void release(Handle handle) {
+    if (handle.closed) {
+      invalidCloses.incrementAndGet();
+      throw new IllegalStateException(handle.filename + " was already closed");
+    }
+    handle.closed = true;
+    int count = getOpenHandleCount(handle.filename) - 1;
+    if (count > 0) {
+      openHandles.put(handle.filename, count);
+    } else {
+      openHandles.remove(handle.filename);
+    }
+  }
+
+  private synchronized void releaseQuietly(Handle handle) {
+    if (!handle.closed) {
+      release(handle);
+    }
+  }
+
+  private FileRecord recordFor(String filename) {
+    FileRecord record = files.get(filename);
+    if (record == null) {
+      record = new FileRecord();
+      record.lastModified = System.currentTimeMillis();
+      files.put(filename, record);
+    }
+    return record;
+  }
+
+  private static Handle handleOf(Snapshot snapshot) {
+    if (snapshot == null || !Proxy.isProxyClass(snapshot.getClass())) {
+      throw new IllegalArgumentException("not a snapshot from the fake backend: " + snapshot);
+    }
+    return (Handle) Proxy.getInvocationHandler(snapshot);
+  }
+
+  private static Handle handleOf(SnapshotContents contents) {
+    if (contents == null || !Proxy.isProxyClass(contents.getClass())) {
+      throw new IllegalArgumentException("not contents from the fake backend: " + contents);
+    }
+    return ((ContentsHandler) Proxy.getInvocationHandler(contents)).handle;
+  }
+
+  /**
+   * One open of a file, along with the proxies handed out for it.  The metadata is captured at
+   * open time, like it is for real snapshots.
+   */
+  private static class Handle implements InvocationHandler {
+    final long id;
+    final String filename;
+    final long revision;
+    final long lastModified;
+    final String description;
+    final long progressValue;
+
+    final Snapshot snapshot;
+    final SnapshotMetadata metadata;
+
+    volatile byte[] contents;
+    volatile boolean closed;
+
+    Handle(long id, String filename, FileRecord record) {
+      this.id = id;
+      this.filename = filename;
+      this.revision = record.revision;
+      this.lastModified = record.lastModified;
+      this.description = record.description;
+      this.progressValue = record.progressValue;
+      this.contents = record.data;
+
+      ClassLoader loader = FakeSnapshotBackend.class.getClassLoader();
+      snapshot = (Snapshot) Proxy.newProxyInstance(loader,
+          new Class<?>[]{Snapshot.class}, this);
+      metadata = (SnapshotMetadata) Proxy.newProxyInstance(loader,
+          new Class<?>[]{SnapshotMetadata.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+
+      if (name.equals("equals")) {
+        return proxy == args[0];
+      } else if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      } else if (name.equals("toString")) {
+        return "FakeSnapshot{" + filename + " rev " + revision + " #" + id + "}";
+      } else if (name.equals("freeze")) {
+        return proxy;
+      } else if (name.equals("isDataValid")) {
+        return true;
+      }
+
+      // Snapshot
+      if (name.equals("getMetadata")) {
+        return metadata;
+      } else if (name.equals("getSnapshotContents")) {
+        return Proxy.newProxyInstance(FakeSnapshotBackend.class.getClassLoader(),
+            new Class<?>[]{SnapshotContents.class}, new ContentsHandler(this));
+      }
+
+      // SnapshotMetadata
+      if (name.equals("getUniqueName") || name.equals("getTitle")) {
+        return filename;
+      } else if (name.equals("getSnapshotId")) {
+        return "fake:" + filename;
+      } else if (name.equals("getDescription")) {
+        return description;
+      } else if (name.equals("getLastModifiedTimestamp")) {
+        return lastModified;
+      } else if (name.equals("getProgressValue")) {
+        return progressValue;
+      } else if (name.equals("getPlayedTime")) {
+        return -1L;
+      }
+
+      return defaultValue(method.getReturnType());
+    }
+  }
+
+  private static class ContentsHandler implements InvocationHandler {
+    private final Handle handle;
+
+    ContentsHandler(Handle handle) {
+      this.handle = handle;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+
+      if (name.equals("equals")) {
+        return proxy == args[0];
+      } else if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      } else if (name.equals("toString")) {
+        return "FakeSnapshotContents{" + handle.filename + " #" + handle.id + "}";
+      } else if (name.equals("readFully")) {
+        byte[] data = handle.contents;
+        return Arrays.copyOf(data, data.length);
+      } else if (name.equals("writeBytes")) {
+        byte[] data = (byte[]) args[0];
+        handle.contents = Arrays.copyOf(data, data.length);
+        return true;
+      } else if (name.equals("modifyBytes")) {
+        return modifyBytes((Integer) args[0], (byte[]) args[1], (Integer) args[2],
+            (Integer) args[3]);
+      } else if (name.equals("isClosed")) {
+        return handle.closed;
+      }
+
+      return defaultValue(method.getReturnType());
+    }
+
+    private boolean modifyBytes(int dstOffset, byte[] content, int srcOffset, int count) {
+      byte[] data = handle.contents;
+      byte[] modified = Arrays.copyOf(data, Math.max(data.length, dstOffset + count));
+      System.arraycopy(content, srcOffset, modified, dstOffset, count);
+      handle.contents = modified;
+      return true;
+    }
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == float.class) {
+      return 0f;
+    } else if (type == double.class) {
+      return 0d;
+    }
+    return null;
+  }
+}
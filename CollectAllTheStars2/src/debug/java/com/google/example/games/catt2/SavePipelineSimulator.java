@@ -0,0 +1,484 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import com.google.android.gms.games.SnapshotsClient;
+import com.google.android.gms.games.snapshot.Snapshot;
+import com.google.android.gms.games.snapshot.SnapshotMetadataChange;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays synthetic player traces through the save pipeline, to tune the autosave and journal
+ * policies without a device in hand.
+ * <p/>
+ * Each trace is one player rating levels, with bursts of quick ratings between pauses, and now
+ * and then switching to another save slot.  The player side of the pipeline runs in simulated
+ * time: a rating marks the game dirty, the game is saved locally once it has gone unchanged for
+ * the autosave quiet period (or right away when the slot changes), and local saves are committed
+ * to the cloud at the end of the journal's flush window, newest save per slot only, as
+ * {@link AutosaveScheduler} and {@link SaveJournal} do.  The commits themselves are real: they go
+ * through a {@link SnapshotCoordinator} to a {@link FakeSnapshotBackend}, with conflicts merged
+ * like the game merges them, and failed commits are retried in the next window.
+ * <p/>
+ * The report gives how fast events were replayed, how many local saves and cloud commits they
+ * turned into, and percentiles of the time from a rating to the commit that made it durable in the
+ * cloud.  That time is simulated time to the commit plus the real time the commit took.
+ * <p/>
+ * Nothing here needs a device or a main thread, so the simulator runs as a local unit test; see
+ * SavePipelineSimulatorTest.  {@link #run()} blocks, so on a device it must be called from a
+ * background thread.
+ */
+public class SavePipelineSimulator {
+
+  private static final String TAG = "SavePipelineSim";
+
+  private static final String FILE_PREFIX = "sim-";
+
+  private static final int WORLDS = 20;
+  private static final int LEVELS_PER_WORLD = 12;
+
+  // Upper bounds of the latency histogram buckets, in milliseconds; the last bucket has no bound.
+  private static final long[] BUCKET_BOUNDS_MILLIS = {
+      100, 250, 500, 1000, 2000, 3000, 5000, 7500, 10000, 15000, 30000, 60000, 120000, 300000
+  };
+
+  private final SnapshotCoordinator coordinator;
+  private final FakeSnapshotBackend backend;
+
+  private int traces = 8;
+  private long eventsPerTrace = 125000;
+  private int slotsPerTrace = 3;
+
+  // the player: mean pause between bursts, mean gap within a burst, and mean burst length.
+  private long meanPauseMillis = 20000;
+  private long meanBurstGapMillis = 600;
+  private int meanBurstLength = 4;
+  private double slotSwitchRate = 0.01;
+
+  // the policies being tuned.
+  private long quietPeriodMillis = 2000;
+  private long flushWindowMillis = 5000;
+
+  private long commitTimeoutMillis = 10000;
+
+  private final AtomicLong ratings = new AtomicLong();
+  private final AtomicLong slotSwitches = new AtomicLong();
+  private final AtomicLong localSaves = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong failedCommits = new AtomicLong();
+  private final AtomicLong mergedConflicts = new AtomicLong();
+  private final AtomicLong lostProgress = new AtomicLong();
+  private final AtomicLong simulatedMillis = new AtomicLong();
+  private final List<String> problems = Collections.synchronizedList(new ArrayList<String>());
+
+  // rating-to-cloud latency, one count per rating.
+  private final AtomicLong[] latencyBuckets = new AtomicLong[BUCKET_BOUNDS_MILLIS.length + 1];
+  private final AtomicLong[] commitMicrosBuckets = new AtomicLong[BUCKET_BOUNDS_MILLIS.length + 1];
+
+  public SavePipelineSimulator(SnapshotCoordinator coordinator, FakeSnapshotBackend backend) {
+    this.coordinator = coordinator;
+    this.backend = backend;
+    for (int i = 0; i < latencyBuckets.length; i++) {
+      latencyBuckets[i] = new AtomicLong();
+      commitMicrosBuckets[i] = new AtomicLong();
+    }
+  }
+
+  /**
+   * Sets how many players are replayed at the same time, and how many events each one makes.
+   */
+  public SavePipelineSimulator setTraces(int traces, long eventsPerTrace) {
+    this.traces = traces;
+    this.eventsPerTrace = eventsPerTrace;
+    return this;
+  }
+
+  public SavePipelineSimulator setSlotsPerTrace(int slotsPerTrace) {
+    this.slotsPerTrace = slotsPerTrace;
+    return this;
+  }
+
+  /**
+   * Sets how the player behaves.
+   *
+   * @param meanPauseMillis    - mean time between bursts of ratings.
+   * @param meanBurstGapMillis - mean time between ratings within a burst.
+   * @param meanBurstLength    - mean number of ratings in a burst.
+   * @param slotSwitchRate     - probability that an event is a slot switch instead of a rating.
+   */
+  public SavePipelineSimulator setPlayer(long meanPauseMillis, long meanBurstGapMillis,
+                                         int meanBurstLength, double slotSwitchRate) {
+    this.meanPauseMillis = meanPauseMillis;
+    this.meanBurstGapMillis = meanBurstGapMillis;
+    this.meanBurstLength = meanBurstLength;
+    this.slotSwitchRate = slotSwitchRate;
+    return this;
+  }
+
+  public SavePipelineSimulator setQuietPeriodMillis(long quietPeriodMillis) {
+    this.quietPeriodMillis = quietPeriodMillis;
+    return this;
+  }
+
+  public SavePipelineSimulator setFlushWindowMillis(long flushWindowMillis) {
+    this.flushWindowMillis = flushWindowMillis;
+    return this;
+  }
+
+  /**
+   * The outcome of a run.
+   */
+  public static class Report {
+    public long elapsedMillis;
+    public long simulatedMillis;
+    public long ratings;
+    public long slotSwitches;
+    public long localSaves;
+    public long commits;
+    public long failedCommits;
+    public long mergedConflicts;
+    // slots whose final game did not reach the cloud, which should never happen.
+    public long lostProgress;
+
+    public long p50LatencyMillis;
+    public long p90LatencyMillis;
+    public long p99LatencyMillis;
+    public long p50CommitMicros;
+    public long p99CommitMicros;
+
+    // what went wrong, one line per failed commit or lost slot.
+    public List<String> problems;
+
+    public double eventsPerSecond() {
+      return elapsedMillis == 0 ? 0 : (ratings + slotSwitches) * 1000.0 / elapsedMillis;
+    }
+
+    public double ratingsPerCommit() {
+      return commits == 0 ? 0 : (double) ratings / commits;
+    }
+
+    public double commitsPerSimulatedHour() {
+      return simulatedMillis == 0 ? 0 : commits * 3600000.0 / simulatedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%.0f events/s", eventsPerSecond())
+          + " (" + (ratings + slotSwitches) + " events in " + elapsedMillis + "ms, "
+          + (simulatedMillis / 1000) + "s simulated)"
+          + "\n  ratings=" + ratings + " slotSwitches=" + slotSwitches
+          + " localSaves=" + localSaves + " commits=" + commits
+          + String.format(" (%.1f ratings/commit, %.1f commits/h)",
+          ratingsPerCommit(), commitsPerSimulatedHour())
+          + "\n  failedCommits=" + failedCommits + " mergedConflicts=" + mergedConflicts
+          + " lostProgress=" + lostProgress
+          + "\n  rating-to-cloud p50<=" + p50LatencyMillis + "ms p90<=" + p90LatencyMillis
+          + "ms p99<=" + p99LatencyMillis + "ms"
+          + "\n  commit p50<=" + p50CommitMicros + "us p99<=" + p99CommitMicros + "us"
+          + (problems.isEmpty() ? "" : "\n  " + problems.size() + " problems, first: "
+          + problems.get(0));
+    }
+  }
+
+  public Report run() throws InterruptedException {
+    long start = System.currentTimeMillis();
+
+    List<Thread> workers = new ArrayList<>(traces);
+    for (int i = 0; i < traces; i++) {
+      final int trace = i;
+      final long seed = start + i;
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          new Player(trace, new Random(seed)).play();
+        }
+      }, TAG + "-" + i);
+      workers.add(worker);
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    Report report = new Report();
+    report.elapsedMillis = System.currentTimeMillis() - start;
+    report.simulatedMillis = simulatedMillis.get();
+    report.ratings = ratings.get();
+    report.slotSwitches = slotSwitches.get();
+    report.localSaves = localSaves.get();
+    report.commits = commits.get();
+    report.failedCommits = failedCommits.get();
+    report.mergedConflicts = mergedConflicts.get();
+    report.lostProgress = lostProgress.get();
+    report.p50LatencyMillis = percentile(latencyBuckets, 50);
+    report.p90LatencyMillis = percentile(latencyBuckets, 90);
+    report.p99LatencyMillis = percentile(latencyBuckets, 99);
+    // the commit histogram reuses the bucket bounds, counted in microseconds.
+    report.p50CommitMicros = percentile(commitMicrosBuckets, 50);
+    report.p99CommitMicros = percentile(commitMicrosBuckets, 99);
+    synchronized (problems) {
+      report.problems = new ArrayList<>(problems);
+    }
+    return report;
+  }
+
+  /**
+   * One player's trace, and the player side of the pipeline, in simulated time.
+   */
+  private class Player {
+    private final int trace;
+    private final Random random;
+
+    private long now = 0;
+    private int slot = 0;
+    private SaveGame game = new SaveGame();
+    private final SaveGame[] games;
+
+    // autosave: when the game became dirty, and when the quiet period ends; -1 if clean.
+    private long autosaveAt = -1;
+    // ratings not yet saved locally, by when they happened.
+    private long[] unsaved = new long[16];
+    private int unsavedCount;
+
+    // journal: newest local save per slot, the ratings it holds, and when the window ends.
+    private final Map<Integer, SaveGame> pending = new HashMap<>();
+    private final Map<Integer, long[]> pendingTimes = new HashMap<>();
+    private long flushAt = -1;
+
+    // what each slot should hold in the cloud once everything is committed.
+    private final SaveGame[] expected;
+
+    Player(int trace, Random random) {
+      this.trace = trace;
+      this.random = random;
+      games = new SaveGame[slotsPerTrace];
+      expected = new SaveGame[slotsPerTrace];
+      for (int i = 0; i < slotsPerTrace; i++) {
+        games[i] = new SaveGame();
+        expected[i] = new SaveGame();
+      }
+    }
+
+    void play() {
+      int burstLeft = 0;
+      for (long event = 0; event < eventsPerTrace; event++) {
+        long gap;
+        if (burstLeft > 0) {
+          burstLeft--;
+          gap = exponential(meanBurstGapMillis);
+        } else {
+          burstLeft = (int) exponential(meanBurstLength);
+          gap = exponential(meanPauseMillis);
+        }
+        advanceTo(now + gap);
+
+        if (slotsPerTrace > 1 && random.nextDouble() < slotSwitchRate) {
+          switchSlot();
+        } else {
+          rate();
+        }
+      }
+
+      // the app stops: save and commit whatever is left.
+      saveLocally();
+      flush();
+      simulatedMillis.addAndGet(now);
+      verify();
+    }
+
+    private void rate() {
+      int world = 1 + random.nextInt(WORLDS);
+      int level = 1 + random.nextInt(LEVELS_PER_WORLD);
+      int stars = 1 + random.nextInt(SaveGame.MAX_STARS);
+      game.setLevelStars(world, level, stars);
+      // conflicts are merged by keeping the most stars, so that is what the cloud should end with.
+      if (stars > expected[slot].getLevelStars(world, level)) {
+        expected[slot].setLevelStars(world, level, stars);
+      }
+      ratings.incrementAndGet();
+
+      if (unsavedCount == unsaved.length) {
+        unsaved = Arrays.copyOf(unsaved, unsaved.length * 2);
+      }
+      unsaved[unsavedCount++] = now;
+      autosaveAt = now + quietPeriodMillis;
+    }
+
+    private void switchSlot() {
+      // pending changes belong to the slot being left.
+      saveLocally();
+      games[slot] = game;
+      slot = (slot + 1 + random.nextInt(slotsPerTrace - 1)) % slotsPerTrace;
+      game = games[slot];
+      slotSwitches.incrementAndGet();
+    }
+
+    // Runs the autosave and journal timers that are due before the given time.
+    private void advanceTo(long time) {
+      while (true) {
+        long next = Long.MAX_VALUE;
+        if (autosaveAt >= 0) {
+          next = autosaveAt;
+        }
+        if (flushAt >= 0) {
+          next = Math.min(next, flushAt);
+        }
+        if (next > time) {
+          break;
+        }
+        now = next;
+        if (next == autosaveAt) {
+          saveLocally();
+        } else {
+          flush();
+        }
+      }
+      now = time;
+    }
+
+    private void saveLocally() {
+      autosaveAt = -1;
+      if (unsavedCount == 0) {
+        return;
+      }
+      localSaves.incrementAndGet();
+      pending.put(slot, game.clone());
+      long[] times = pendingTimes.get(slot);
+      int held = times == null ? 0 : times.length;
+      long[] merged = new long[held + unsavedCount];
+      if (times != null) {
+        System.arraycopy(times, 0, merged, 0, held);
+      }
+      System.arraycopy(unsaved, 0, merged, held, unsavedCount);
+      pendingTimes.put(slot, merged);
+      unsavedCount = 0;
+      if (flushAt < 0) {
+        flushAt = now + flushWindowMillis;
+      }
+    }
+
+    private void flush() {
+      flushAt = -1;
+      for (Integer pendingSlot : new ArrayList<>(pending.keySet())) {
+        long startNanos = System.nanoTime();
+        if (!commit(FILE_PREFIX + trace + "-" + pendingSlot, pending.get(pendingSlot))) {
+          failedCommits.incrementAndGet();
+          continue;
+        }
+        long commitMicros = (System.nanoTime() - startNanos) / 1000;
+        commits.incrementAndGet();
+        record(commitMicrosBuckets, commitMicros);
+        long doneAt = now + commitMicros / 1000;
+        for (long ratedAt : pendingTimes.get(pendingSlot)) {
+          record(latencyBuckets, doneAt - ratedAt);
+        }
+        pending.remove(pendingSlot);
+        pendingTimes.remove(pendingSlot);
+      }
+      if (!pending.isEmpty()) {
+        // retry in the next window.
+        flushAt = now + flushWindowMillis;
+      }
+    }
+
+    // Commits like MainActivity.commit() does: open, merge any conflict, then merge in the game.
+    private boolean commit(String filename, SaveGame saveGame) {
+      try {
+        SnapshotsClient.DataOrConflict<Snapshot> result = BlockingTasks.await(
+            coordinator.open(backend, filename, true, SnapshotCoordinator.Priority.BACKGROUND_SYNC),
+            commitTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (result.isConflict()) {
+          mergedConflicts.incrementAndGet();
+        }
+        Snapshot snapshot = BlockingTasks.await(
+            coordinator.resolveConflict(backend, result, SaveGame.MERGER),
+            commitTimeoutMillis, TimeUnit.MILLISECONDS);
+        saveGame = new SaveGame(snapshot.getSnapshotContents().readFully()).unionWith(saveGame);
+        snapshot.getSnapshotContents().writeBytes(saveGame.toBytes());
+        SnapshotMetadataChange change = new SnapshotMetadataChange.Builder()
+            .setDescription("simulated")
+            .build();
+        BlockingTasks.await(coordinator.commitAndClose(backend, snapshot, change),
+            commitTimeoutMillis, TimeUnit.MILLISECONDS);
+        return true;
+      } catch (ExecutionException e) {
+        // the coordinator has already retried what was worth retrying.
+        return false;
+      } catch (TimeoutException e) {
+        problems.add("Commit of " + filename + " did not complete in "
+            + commitTimeoutMillis + "ms");
+        return false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (IOException e) {
+        problems.add("Could not read the merged snapshot of " + filename + ": " + e);
+        return false;
+      }
+    }
+
+    // Checks that every slot ended up in the cloud with everything the player rated on it.
+    private void verify() {
+      for (int i = 0; i < slotsPerTrace; i++) {
+        byte[] data = backend.getCommittedData(FILE_PREFIX + trace + "-" + i);
+        SaveGame committed = new SaveGame(data);
+        if (!committed.covers(expected[i])) {
+          problems.add("Slot " + i + " of trace " + trace + " is missing progress in the cloud");
+          lostProgress.incrementAndGet();
+        }
+      }
+    }
+
+    private long exponential(double mean) {
+      return (long) (-mean * Math.log(1.0 - random.nextDouble()));
+    }
+  }
+
+  private static void record(AtomicLong[] buckets, long value) {
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MILLIS.length && value > BUCKET_BOUNDS_MILLIS[bucket]) {
+      bucket++;
+    }
+    buckets[bucket].incrementAndGet();
+  }
+
+  // Returns the upper bound of the bucket the percentile falls in, or -1 if it is the last one.
+  private static long percentile(AtomicLong[] buckets, double percentile) {
+    long total = 0;
+    for (AtomicLong bucket : buckets) {
+      total += bucket.get();
+    }
+    long rank = (long) Math.ceil(total * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+      seen += buckets[i].get();
+      if (seen >= rank) {
+        return BUCKET_BOUNDS_MILLIS[i];
+      }
+    }
+    return -1;
+  }
+}
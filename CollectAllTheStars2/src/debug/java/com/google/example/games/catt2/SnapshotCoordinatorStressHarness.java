@@ -0,0 +1,364 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import android.util.Log;
+
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.games.SnapshotsClient;
+import com.google.android.gms.games.snapshot.Snapshot;
+import com.google.android.gms.games.snapshot.SnapshotMetadata;
+import com.google.android.gms.games.snapshot.SnapshotMetadataChange;
+import com.google.android.gms.tasks.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers the SnapshotCoordinator from many threads with random open/commit/discard/delete and
+ * waitForClosed sequences against a {@link FakeSnapshotBackend}, then checks the invariants the
+ * coordinator is supposed to guarantee:
+ * <ul>
+ * <li>a file is never open more than once at the backend at the same time,</li>
+ * <li>a snapshot is never closed twice,</li>
+ * <li>every waitForClosed completes once the file is closed (no lost wake-ups), and</li>
+ * <li>once all work has drained, no file is left open or closing (no stuck latches).</li>
+ * </ul>
+ * The coordinator rejecting an open or delete because another thread has the file is expected and
+ * is only counted.  Any other refusal, such as an open circuit breaker, a shut-down coordinator or
+ * a reclaimed lease, counts as an unexpected error and fails the run, as does a run in which no
+ * commit got through.
+ * <p/>
+ * Some steps open through the coordinator's priority queue instead, mostly as background syncs
+ * with the occasional interactive load, and the report shows how long each class waited for its
+ * open.  Interactive loads should wait about one operation at most, however many syncs are queued.
+ * <p/>
+ * {@link #run()} blocks, so it must be called from a background thread.  It needs nothing from a
+ * device, and SnapshotCoordinatorStressTest runs it as a local unit test.
+ */
+public class SnapshotCoordinatorStressHarness {
+
+  private static final String TAG = "CoordinatorStress";
+
+  private static final String FILE_PREFIX = "stress-";
+
+  private final SnapshotCoordinator coordinator;
+  private final FakeSnapshotBackend backend;
+
+  private int threads = 16;
+  private int files = 4;
+  private long durationMillis = 10000;
+  private long stuckTimeoutMillis = 5000;
+
+  private final AtomicLong operations = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong discards = new AtomicLong();
+  private final AtomicLong deletes = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong backendFailures = new AtomicLong();
+  private final AtomicLong stuckWaits = new AtomicLong();
+  private final AtomicLong unexpectedErrors = new AtomicLong();
+
+  // Total and worst time spent waiting for a prioritized open, per priority.
+  private final AtomicLong[] queuedOpens = newCounters();
+  private final AtomicLong[] queuedOpenMicros = newCounters();
+  private final AtomicLong[] maxQueuedOpenMicros = newCounters();
+
+  public SnapshotCoordinatorStressHarness(SnapshotCoordinator coordinator,
+                                          FakeSnapshotBackend backend) {
+    this.coordinator = coordinator;
+    this.backend = backend;
+  }
+
+  public SnapshotCoordinatorStressHarness setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  public SnapshotCoordinatorStressHarness setFiles(int files) {
+    this.files = files;
+    return this;
+  }
+
+  public SnapshotCoordinatorStressHarness setDurationMillis(long durationMillis) {
+    this.durationMillis = durationMillis;
+    return this;
+  }
+
+  /**
+   * Sets how long a single step may wait before it is reported as stuck.
+   */
+  public SnapshotCoordinatorStressHarness setStuckTimeoutMillis(long stuckTimeoutMillis) {
+    this.stuckTimeoutMillis = stuckTimeoutMillis;
+    return this;
+  }
+
+  /**
+   * The outcome of a run.
+   */
+  public static class Report {
+    public long elapsedMillis;
+    public long operations;
+    public long commits;
+    public long discards;
+    public long deletes;
+    public long waits;
+    public long rejected;
+    public long backendFailures;
+    public long conflicts;
+
+    public long overlappingOpens;
+    public long invalidCloses;
+    public long stuckWaits;
+    public long filesLeftOpen;
+    public long unexpectedErrors;
+
+    // indexed by SnapshotCoordinator.Priority ordinal.
+    public long[] queuedOpens = new long[SnapshotCoordinator.Priority.values().length];
+    public long[] averageQueuedOpenMicros = new long[SnapshotCoordinator.Priority.values().length];
+    public long[] maxQueuedOpenMicros = new long[SnapshotCoordinator.Priority.values().length];
+
+    public double operationsPerSecond() {
+      return elapsedMillis == 0 ? 0 : operations * 1000.0 / elapsedMillis;
+    }
+
+    public boolean passed() {
+      return overlappingOpens == 0 && invalidCloses == 0 && stuckWaits == 0
+          && filesLeftOpen == 0 && unexpectedErrors == 0 && commits > 0;
+    }
+
+    @Override
+    public String toString() {
+      return (passed() ? "PASSED" : "FAILED")
+          + String.format(" %.0f ops/s", operationsPerSecond())
+          + " (" + operations + " ops in " + elapsedMillis + "ms)"
+          + "\n  commits=" + commits + " discards=" + discards + " deletes=" + deletes
+          + " waits=" + waits
+          + "\n  rejected=" + rejected + " backendFailures=" + backendFailures
+          + " conflicts=" + conflicts
+          + "\n  overlappingOpens=" + overlappingOpens + " invalidCloses=" + invalidCloses
+          + " stuckWaits=" + stuckWaits + " filesLeftOpen=" + filesLeftOpen
+          + " unexpectedErrors=" + unexpectedErrors
+          + queuedOpensToString();
+    }
+
+    private String queuedOpensToString() {
+      StringBuilder builder = new StringBuilder();
+      for (SnapshotCoordinator.Priority priority : SnapshotCoordinator.Priority.values()) {
+        int i = priority.ordinal();
+        builder.append("\n  ").append(priority).append(": opens=").append(queuedOpens[i])
+            .append(" avgWait=").append(averageQueuedOpenMicros[i]).append("us")
+            .append(" maxWait=").append(maxQueuedOpenMicros[i]).append("us");
+      }
+      return builder.toString();
+    }
+  }
+
+  public Report run() throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + durationMillis;
+    long start = System.currentTimeMillis();
+
+    List<Thread> workers = new ArrayList<>(threads);
+    for (int i = 0; i < threads; i++) {
+      final long seed = start + i;
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          while (System.currentTimeMillis() < deadline) {
+            step(random);
+            operations.incrementAndGet();
+          }
+        }
+      }, TAG + "-" + i);
+      workers.add(worker);
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    Report report = new Report();
+    report.elapsedMillis = System.currentTimeMillis() - start;
+
+    // Everything has been closed or failed by now, so every file must become available.
+    for (int i = 0; i < files; i++) {
+      String filename = FILE_PREFIX + i;
+      await(coordinator.waitForClosed(filename));
+      if (coordinator.isAlreadyOpen(filename) || coordinator.isAlreadyClosing(filename)) {
+        Log.e(TAG, filename + " was left open after the run: " + coordinator.getDiagnostics());
+        report.filesLeftOpen++;
+      }
+    }
+
+    report.operations = operations.get();
+    report.commits = commits.get();
+    report.discards = discards.get();
+    report.deletes = deletes.get();
+    report.waits = waits.get();
+    report.rejected = rejected.get();
+    report.backendFailures = backendFailures.get();
+    report.conflicts = backend.getConflictsInjected();
+    report.overlappingOpens = backend.getOverlappingOpenCount();
+    report.invalidCloses = backend.getInvalidCloseCount();
+    report.stuckWaits = stuckWaits.get();
+    report.unexpectedErrors = unexpectedErrors.get();
+    for (int i = 0; i < queuedOpens.length; i++) {
+      long count = queuedOpens[i].get();
+      report.queuedOpens[i] = count;
+      report.averageQueuedOpenMicros[i] = count == 0 ? 0 : queuedOpenMicros[i].get() / count;
+      report.maxQueuedOpenMicros[i] = maxQueuedOpenMicros[i].get();
+    }
+
+    Log.i(TAG, report.toString());
+    return report;
+  }
+
+  private void step(Random random) {
+    String filename = FILE_PREFIX + random.nextInt(files);
+
+    switch (random.nextInt(5)) {
+      case 0:
+        openThenClose(filename, true, false);
+        break;
+      case 1:
+        openThenClose(filename, false, false);
+        break;
+      case 2:
+        openThenClose(filename, false, true);
+        break;
+      case 3:
+        queuedOpenThenClose(filename, random.nextInt(8) == 0
+            ? SnapshotCoordinator.Priority.INTERACTIVE_LOAD
+            : SnapshotCoordinator.Priority.BACKGROUND_SYNC);
+        break;
+      default:
+        await(coordinator.waitForClosed(filename));
+        waits.incrementAndGet();
+        break;
+    }
+  }
+
+  private void openThenClose(String filename, boolean commit, boolean deleteAfter) {
+    if (!await(coordinator.waitForClosed(filename))) {
+      return;
+    }
+
+    SnapshotsClient.DataOrConflict<Snapshot> result =
+        awaitResult(coordinator.open(backend, filename, true));
+    if (result == null) {
+      return;
+    }
+
+    if (result.isConflict()) {
+      // The coordinator keeps a conflicted file open; give it back without resolving.
+      if (await(coordinator.discardAndClose(backend, result.getConflict().getSnapshot()))) {
+        discards.incrementAndGet();
+      }
+      return;
+    }
+
+    Snapshot snapshot = result.getData();
+    SnapshotMetadata metadata = snapshot.getMetadata();
+
+    if (commit) {
+      snapshot.getSnapshotContents().writeBytes(
+          Long.toString(System.nanoTime()).getBytes());
+      SnapshotMetadataChange change = new SnapshotMetadataChange.Builder()
+          .setDescription("stress")
+          .build();
+      if (await(coordinator.commitAndClose(backend, snapshot, change))) {
+        commits.incrementAndGet();
+      }
+    } else if (await(coordinator.discardAndClose(backend, snapshot))) {
+      discards.incrementAndGet();
+    }
+
+    if (deleteAfter && await(coordinator.delete(backend, metadata))) {
+      deletes.incrementAndGet();
+    }
+  }
+
+  // Opens through the priority queue, which never rejects, and closes right away.
+  private void queuedOpenThenClose(String filename, SnapshotCoordinator.Priority priority) {
+    long start = System.nanoTime();
+    SnapshotsClient.DataOrConflict<Snapshot> result =
+        awaitResult(coordinator.open(backend, filename, true, priority));
+    if (result == null) {
+      return;
+    }
+
+    long waitedMicros = (System.nanoTime() - start) / 1000;
+    int i = priority.ordinal();
+    queuedOpens[i].incrementAndGet();
+    queuedOpenMicros[i].addAndGet(waitedMicros);
+    long max;
+    do {
+      max = maxQueuedOpenMicros[i].get();
+    } while (waitedMicros > max && !maxQueuedOpenMicros[i].compareAndSet(max, waitedMicros));
+
+    Snapshot snapshot = result.isConflict() ? result.getConflict().getSnapshot() : result.getData();
+    if (await(coordinator.discardAndClose(backend, snapshot))) {
+      discards.incrementAndGet();
+    }
+  }
+
+  private static AtomicLong[] newCounters() {
+    AtomicLong[] counters = new AtomicLong[SnapshotCoordinator.Priority.values().length];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new AtomicLong();
+    }
+    return counters;
+  }
+
+  /**
+   * Waits for the task and returns its result, or null if it did not succeed.
+   */
+  private <T> T awaitResult(Task<T> task) {
+    return await(task) ? task.getResult() : null;
+  }
+
+  /**
+   * Waits for the task and classifies how it ended.  Returns true if it succeeded.
+   */
+  private boolean await(Task<?> task) {
+    try {
+      BlockingTasks.await(task, stuckTimeoutMillis, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      Log.e(TAG, "Task did not complete within " + stuckTimeoutMillis + "ms", e);
+      stuckWaits.incrementAndGet();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SnapshotCoordinator.FileInUseException) {
+        // lost the race for the file to another thread.
+        rejected.incrementAndGet();
+      } else if (cause instanceof ApiException) {
+        backendFailures.incrementAndGet();
+      } else {
+        Log.e(TAG, "Unexpected failure", cause);
+        unexpectedErrors.incrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+}
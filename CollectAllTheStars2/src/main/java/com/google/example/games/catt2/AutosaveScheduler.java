@@ -0,0 +1,109 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Collapses bursts of changes to the game into a single save.
+ * <p>
+ * Each change marks the game dirty and restarts the quiet period; the save runs once no change
+ * has been made for that long, and saves whatever the game is by then.  {@link #flush()} saves
+ * right away, for when the app is about to stop or the player signs out.
+ * <p>
+ * All methods must be called on the main thread, and the save runs on the main thread too.
+ */
+public class AutosaveScheduler {
+
+  private static final String TAG = "AutosaveScheduler";
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final Runnable mSave;
+  private long mQuietPeriodMillis;
+
+  private boolean mDirty = false;
+  // when the game first became dirty, for logging how long changes were held back.
+  private long mDirtySinceMillis;
+  private int mChangesSinceSave;
+
+  private final Runnable mSaveIfDirty = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  /**
+   * @param quietPeriodMillis - how long the game must go unchanged before it is saved.
+   * @param save              - saves the current game.
+   */
+  public AutosaveScheduler(long quietPeriodMillis, Runnable save) {
+    mQuietPeriodMillis = quietPeriodMillis;
+    mSave = save;
+  }
+
+  public void setQuietPeriodMillis(long quietPeriodMillis) {
+    mQuietPeriodMillis = quietPeriodMillis;
+  }
+
+  public long getQuietPeriodMillis() {
+    return mQuietPeriodMillis;
+  }
+
+  public boolean isDirty() {
+    return mDirty;
+  }
+
+  /**
+   * Records that the game changed, and (re)starts the quiet period.
+   */
+  public void markDirty() {
+    if (!mDirty) {
+      mDirty = true;
+      mDirtySinceMillis = SystemClock.elapsedRealtime();
+    }
+    mChangesSinceSave++;
+    mHandler.removeCallbacks(mSaveIfDirty);
+    mHandler.postDelayed(mSaveIfDirty, mQuietPeriodMillis);
+  }
+
+  /**
+   * Saves now if the game has unsaved changes.
+   */
+  public void flush() {
+    mHandler.removeCallbacks(mSaveIfDirty);
+    if (!mDirty) {
+      return;
+    }
+    Log.d(TAG, "Saving " + mChangesSinceSave + " changes made over the last "
+        + (SystemClock.elapsedRealtime() - mDirtySinceMillis) + "ms");
+    mDirty = false;
+    mChangesSinceSave = 0;
+    mSave.run();
+  }
+
+  /**
+   * Forgets unsaved changes, for when the game they belong to is replaced.
+   */
+  public void cancel() {
+    mHandler.removeCallbacks(mSaveIfDirty);
+    mDirty = false;
+    mChangesSinceSave = 0;
+  }
+}
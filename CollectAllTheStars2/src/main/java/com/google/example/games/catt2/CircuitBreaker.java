@@ -0,0 +1,136 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+/**
+ * Tracks whether the snapshot backend looks healthy.
+ * <p/>
+ * The breaker starts closed and lets every call through.  After a number of consecutive transient
+ * failures it opens, and calls are refused until a probe succeeds.  A probe is allowed once the
+ * probe interval has passed since the breaker opened or since the last probe failed; while a probe
+ * is out the breaker is half open and refuses everything else.  Each failed probe doubles the
+ * interval, up to a maximum.
+ * <p/>
+ * This class only keeps the state; the SnapshotCoordinator decides what counts as a failure and
+ * sends the probes.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  /**
+   * The exception calls fail with while the breaker is open.
+   */
+  public static class OpenException extends IllegalStateException {
+    public OpenException(String message) {
+      super(message);
+    }
+  }
+
+  private final int failureThreshold;
+  private final long probeIntervalMillis;
+  private final long maxProbeIntervalMillis;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long currentProbeIntervalMillis;
+  private long openedAtMillis;
+  private int timesOpened;
+
+  /**
+   * @param failureThreshold       - consecutive failures that open the breaker.
+   * @param probeIntervalMillis    - how long to wait before the first probe.
+   * @param maxProbeIntervalMillis - the longest wait between probes.
+   */
+  public CircuitBreaker(int failureThreshold, long probeIntervalMillis,
+                        long maxProbeIntervalMillis) {
+    this.failureThreshold = failureThreshold;
+    this.probeIntervalMillis = probeIntervalMillis;
+    this.maxProbeIntervalMillis = maxProbeIntervalMillis;
+    this.currentProbeIntervalMillis = probeIntervalMillis;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Returns true if a call may go through now.
+   */
+  public synchronized boolean allowRequest() {
+    return state == State.CLOSED;
+  }
+
+  /**
+   * Returns how long until a probe is due, or 0 if one may be sent now.  Only meaningful while
+   * the breaker is open.
+   */
+  public synchronized long getMillisUntilProbe(long nowMillis) {
+    return Math.max(0, openedAtMillis + currentProbeIntervalMillis - nowMillis);
+  }
+
+  /**
+   * Claims the right to send a probe.  Returns false if the breaker is not open or the probe is not
+   * due yet.
+   */
+  public synchronized boolean tryStartProbe(long nowMillis) {
+    if (state != State.OPEN || getMillisUntilProbe(nowMillis) > 0) {
+      return false;
+    }
+    state = State.HALF_OPEN;
+    return true;
+  }
+
+  public synchronized void onSuccess() {
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    currentProbeIntervalMillis = probeIntervalMillis;
+  }
+
+  /**
+   * Records a failure that suggests the backend is unavailable.
+   *
+   * @return true if this failure opened the breaker.
+   */
+  public synchronized boolean onFailure(long nowMillis) {
+    if (state == State.HALF_OPEN) {
+      // the probe failed; wait longer before the next one.
+      currentProbeIntervalMillis = Math.min(currentProbeIntervalMillis * 2, maxProbeIntervalMillis);
+      state = State.OPEN;
+      openedAtMillis = nowMillis;
+      return false;
+    }
+
+    consecutiveFailures++;
+    if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAtMillis = nowMillis;
+      timesOpened++;
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  public synchronized int getTimesOpened() {
+    return timesOpened;
+  }
+}
@@ -0,0 +1,277 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.util.Log;
+import android.view.View;
+
+import com.google.android.gms.games.snapshot.SnapshotMetadata;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Produces snapshot cover images without copying the whole screen.
+ * <p>
+ * The view is drawn, scaled down, into a small bitmap taken from a pool, which is the only work
+ * done on the main thread.  The bitmap is then compressed to JPEG on a background thread and goes
+ * back to the pool, so saves do not allocate a new screen-sized bitmap each time.  The compressed
+ * image is kept to the backend's cover image limit, once that is known.
+ * <p>
+ * Each image also gets a difference hash: the bitmap is shrunk to a small grey grid and each bit
+ * says whether a cell is brighter than its right-hand neighbour.  Saves whose cover hashes the same
+ * as the one last committed to that snapshot can leave the cover out of the metadata change, and
+ * the backend keeps the one it has.
+ */
+public class CoverImagePipeline {
+
+  private static final String TAG = "CoverImagePipeline";
+
+  // the longest edge of a cover image, in pixels.
+  private static final int TARGET_LONG_EDGE = 640;
+
+  // JPEG quality to start with, and the lowest to try before giving up on the size limit.
+  private static final int START_QUALITY = 85;
+  private static final int MIN_QUALITY = 40;
+  private static final int QUALITY_STEP = 15;
+
+  // at most this many bitmaps are kept for reuse.
+  private static final int POOL_SIZE = 2;
+
+  // the grid the difference hash is computed on; each row gives HASH_SIZE bits.  It is fine enough
+  // that a level's stars changing shows up in the hash.
+  private static final int HASH_SIZE = 32;
+
+  /**
+   * A compressed cover image and its difference hash.
+   */
+  public static class CoverImage {
+    private final byte[] mJpeg;
+    private final long[] mHash;
+
+    CoverImage(byte[] jpeg, long[] hash) {
+      mJpeg = jpeg;
+      mHash = hash;
+    }
+
+    public byte[] getJpeg() {
+      return mJpeg;
+    }
+
+    /**
+     * Turns the image back into a bitmap for a SnapshotMetadataChange.  Runs on the calling
+     * thread, which should not be the main thread.
+     */
+    public Bitmap decode() {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = Bitmap.Config.RGB_565;
+      return BitmapFactory.decodeByteArray(mJpeg, 0, mJpeg.length, options);
+    }
+
+    public boolean looksLike(CoverImage other) {
+      return other != null && Arrays.equals(mHash, other.mHash);
+    }
+  }
+
+  // the cover last committed to each snapshot, and the modification time the commit gave it.
+  private static class Committed {
+    final CoverImage cover;
+    final long lastModifiedTimestamp;
+
+    Committed(CoverImage cover, long lastModifiedTimestamp) {
+      this.cover = cover;
+      this.lastModifiedTimestamp = lastModifiedTimestamp;
+    }
+  }
+
+  private final Map<String, Committed> mCommitted = new HashMap<>();
+
+  private final Executor mExecutor;
+  private final ArrayDeque<Bitmap> mPool = new ArrayDeque<>();
+
+  // the backend's limit on the compressed image, in bytes; 0 if not known yet.
+  private volatile int mMaxCoverBytes = 0;
+
+  /**
+   * @param executor - where images are compressed.
+   */
+  public CoverImagePipeline(Executor executor) {
+    mExecutor = executor;
+  }
+
+  public void setMaxCoverImageSize(int maxCoverBytes) {
+    mMaxCoverBytes = maxCoverBytes;
+  }
+
+  /**
+   * Draws the view into a pooled bitmap and compresses it in the background.  Must be called on
+   * the main thread.
+   *
+   * @return a task with the cover image, or with null if the view cannot be drawn.
+   */
+  public Task<CoverImage> capture(View root) {
+    int viewWidth = root.getWidth();
+    int viewHeight = root.getHeight();
+    if (viewWidth <= 0 || viewHeight <= 0) {
+      // not laid out yet.
+      return Tasks.forResult(null);
+    }
+
+    float scale = Math.min(1f, (float) TARGET_LONG_EDGE / Math.max(viewWidth, viewHeight));
+    int width = Math.max(1, Math.round(viewWidth * scale));
+    int height = Math.max(1, Math.round(viewHeight * scale));
+
+    final Bitmap bitmap;
+    try {
+      bitmap = acquire(width, height);
+      Canvas canvas = new Canvas(bitmap);
+      canvas.drawColor(Color.WHITE);
+      canvas.scale(scale, scale);
+      root.draw(canvas);
+    } catch (Exception ex) {
+      Log.i(TAG, "Failed to draw cover image", ex);
+      return Tasks.forResult(null);
+    }
+
+    return Tasks.call(mExecutor, new Callable<CoverImage>() {
+      @Override
+      public CoverImage call() {
+        try {
+          byte[] jpeg = compress(bitmap);
+          return jpeg == null ? null : new CoverImage(jpeg, hash(bitmap));
+        } finally {
+          release(bitmap);
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns true if the cover would not change the snapshot's current one: it looks the same as
+   * the cover last committed to it, and nobody has committed to the snapshot since.
+   */
+  public boolean isAlreadyCommitted(SnapshotMetadata metadata, CoverImage cover) {
+    Committed committed;
+    synchronized (mCommitted) {
+      committed = mCommitted.get(metadata.getUniqueName());
+    }
+    return committed != null
+        && committed.lastModifiedTimestamp == metadata.getLastModifiedTimestamp()
+        && committed.cover.looksLike(cover);
+  }
+
+  /**
+   * Records the cover the snapshot now has.
+   */
+  public void onCommitted(SnapshotMetadata metadata, CoverImage cover) {
+    synchronized (mCommitted) {
+      if (cover == null) {
+        mCommitted.remove(metadata.getUniqueName());
+      } else {
+        mCommitted.put(metadata.getUniqueName(),
+            new Committed(cover, metadata.getLastModifiedTimestamp()));
+      }
+    }
+  }
+
+  /**
+   * Forgets all committed covers, for when the player signs in to another account.
+   */
+  public void clearCommitted() {
+    synchronized (mCommitted) {
+      mCommitted.clear();
+    }
+  }
+
+  private byte[] compress(Bitmap bitmap) {
+    int maxBytes = mMaxCoverBytes;
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bitmap.getWidth() * bitmap.getHeight() / 4);
+    for (int quality = START_QUALITY; ; quality -= QUALITY_STEP) {
+      out.reset();
+      bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+      if (maxBytes <= 0 || out.size() <= maxBytes) {
+        return out.toByteArray();
+      }
+      if (quality - QUALITY_STEP < MIN_QUALITY) {
+        Log.w(TAG, "Cover image is " + out.size() + " bytes, over the limit of " + maxBytes
+            + "; saving without one.");
+        return null;
+      }
+    }
+  }
+
+  private static long[] hash(Bitmap bitmap) {
+    Bitmap small = Bitmap.createScaledBitmap(bitmap, HASH_SIZE + 1, HASH_SIZE, true);
+    int[] pixels = new int[(HASH_SIZE + 1) * HASH_SIZE];
+    small.getPixels(pixels, 0, HASH_SIZE + 1, 0, 0, HASH_SIZE + 1, HASH_SIZE);
+    if (small != bitmap) {
+      small.recycle();
+    }
+
+    long[] hash = new long[HASH_SIZE * HASH_SIZE / 64];
+    int bit = 0;
+    for (int y = 0; y < HASH_SIZE; y++) {
+      int row = y * (HASH_SIZE + 1);
+      for (int x = 0; x < HASH_SIZE; x++, bit++) {
+        if (luminance(pixels[row + x]) > luminance(pixels[row + x + 1])) {
+          hash[bit / 64] |= 1L << (bit % 64);
+        }
+      }
+    }
+    return hash;
+  }
+
+  // integer approximation of Rec. 601 luma.
+  private static int luminance(int color) {
+    return (Color.red(color) * 299 + Color.green(color) * 587 + Color.blue(color) * 114) / 1000;
+  }
+
+  private Bitmap acquire(int width, int height) {
+    synchronized (mPool) {
+      while (!mPool.isEmpty()) {
+        Bitmap pooled = mPool.poll();
+        if (pooled.getWidth() == width && pooled.getHeight() == height) {
+          return pooled;
+        }
+        // the screen was rotated or resized; this one will not fit again.
+        pooled.recycle();
+      }
+    }
+    // no alpha is needed, and RGB_565 halves the memory.
+    return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+  }
+
+  private void release(Bitmap bitmap) {
+    synchronized (mPool) {
+      if (mPool.size() < POOL_SIZE) {
+        mPool.offer(bitmap);
+        return;
+      }
+    }
+    bitmap.recycle();
+  }
+}
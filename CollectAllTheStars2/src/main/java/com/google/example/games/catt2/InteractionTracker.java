@@ -0,0 +1,249 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Measures how long the game screens take to respond.
+ * <p>
+ * Each interaction, such as switching worlds, is timed twice: how long its handler ran on the
+ * main thread ("run"), and how long until the next frame started after it ("frame"), which is
+ * when the change can first reach the screen.  Frames are observed with Choreographer callbacks,
+ * which need API 16; on older devices only the run time is recorded.
+ * <p>
+ * Times go into histograms with power-of-two millisecond buckets, one per interaction and
+ * measure, and can be written out as JSON for analysis off the device.  All methods must be
+ * called on the main thread; exports are written on the executor they are given.
+ */
+public class InteractionTracker {
+
+  private static final String TAG = "InteractionTracker";
+
+  // Upper bounds of the histogram buckets, in milliseconds; the last bucket has no bound.
+  private static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+  /**
+   * Latencies of one interaction and measure.
+   */
+  public static class Histogram {
+    private final long[] mBuckets = new long[BUCKET_BOUNDS_MILLIS.length + 1];
+    private long mCount;
+    private double mTotalMillis;
+    private double mMaxMillis;
+
+    void record(double millis) {
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+        bucket++;
+      }
+      mBuckets[bucket]++;
+      mCount++;
+      mTotalMillis += millis;
+      mMaxMillis = Math.max(mMaxMillis, millis);
+    }
+
+    public long getCount() {
+      return mCount;
+    }
+
+    public double getMaxMillis() {
+      return mMaxMillis;
+    }
+
+    /**
+     * Returns the upper bound of the bucket the given percentile falls in, or the maximum if it
+     * falls in the last bucket.
+     */
+    public double getPercentileMillis(double percentile) {
+      long rank = (long) Math.ceil(mCount * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+        seen += mBuckets[i];
+        if (seen >= rank) {
+          return Math.min(BUCKET_BOUNDS_MILLIS[i], mMaxMillis);
+        }
+      }
+      return mMaxMillis;
+    }
+
+    Histogram copy() {
+      Histogram copy = new Histogram();
+      System.arraycopy(mBuckets, 0, copy.mBuckets, 0, mBuckets.length);
+      copy.mCount = mCount;
+      copy.mTotalMillis = mTotalMillis;
+      copy.mMaxMillis = mMaxMillis;
+      return copy;
+    }
+
+    JSONObject toJson() throws JSONException {
+      JSONArray buckets = new JSONArray();
+      for (int i = 0; i < mBuckets.length; i++) {
+        JSONObject bucket = new JSONObject();
+        // the last bucket has no upper bound.
+        bucket.put("upToMillis", i < BUCKET_BOUNDS_MILLIS.length ? BUCKET_BOUNDS_MILLIS[i] : -1);
+        bucket.put("count", mBuckets[i]);
+        buckets.put(bucket);
+      }
+      JSONObject obj = new JSONObject();
+      obj.put("count", mCount);
+      obj.put("meanMillis", mCount == 0 ? 0 : mTotalMillis / mCount);
+      obj.put("maxMillis", mMaxMillis);
+      obj.put("p50Millis", getPercentileMillis(50));
+      obj.put("p90Millis", getPercentileMillis(90));
+      obj.put("p99Millis", getPercentileMillis(99));
+      obj.put("buckets", buckets);
+      return obj;
+    }
+  }
+
+  // exports run on a pool, and one activity's may still be writing when the next one stops.
+  private static final Object EXPORT_LOCK = new Object();
+
+  private final Map<String, Histogram> mHistograms = new TreeMap<>();
+
+  /**
+   * Starts timing an interaction.
+   *
+   * @return a token to pass to {@link #end(String, long)} or {@link #endRun(String, long)}.
+   */
+  public long begin() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Records how long the interaction's handler ran, and how long until the next frame.
+   *
+   * @param interaction - names the interaction, for example "switchWorld".
+   * @param token       - what {@link #begin()} returned.
+   */
+  public void end(String interaction, long token) {
+    endRun(interaction, token);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      awaitFrame(interaction, token);
+    }
+  }
+
+  /**
+   * Records only how long the interaction's handler ran, for work that is part of another
+   * interaction and does not get a frame of its own.
+   */
+  public void endRun(String interaction, long token) {
+    record(interaction + ".run", token);
+  }
+
+  public Histogram getHistogram(String name) {
+    return mHistograms.get(name);
+  }
+
+  public JSONObject toJson() {
+    return toJson(mHistograms);
+  }
+
+  private static JSONObject toJson(Map<String, Histogram> histogramsByName) {
+    try {
+      JSONObject histograms = new JSONObject();
+      for (Map.Entry<String, Histogram> entry : histogramsByName.entrySet()) {
+        histograms.put(entry.getKey(), entry.getValue().toJson());
+      }
+      JSONObject obj = new JSONObject();
+      obj.put("device", Build.MODEL);
+      obj.put("sdk", Build.VERSION.SDK_INT);
+      obj.put("histograms", histograms);
+      return obj;
+    } catch (JSONException ex) {
+      // only happens for non-finite numbers, which there are none of.
+      throw new RuntimeException("Error converting latencies to JSON.", ex);
+    }
+  }
+
+  /**
+   * Writes the histograms to a file as JSON, replacing what was there.  The histograms are copied
+   * right away, so later interactions are not part of the export; turning them into JSON and
+   * writing the file happen on the executor.
+   */
+  public void exportTo(final File file, Executor executor) {
+    if (mHistograms.isEmpty()) {
+      return;
+    }
+    final Map<String, Histogram> copies = new TreeMap<>();
+    for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+      copies.put(entry.getKey(), entry.getValue().copy());
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        byte[] json;
+        try {
+          json = toJson(copies).toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          // UTF-8 is required on every Android device.
+          throw new IllegalStateException(e);
+        }
+        synchronized (EXPORT_LOCK) {
+          try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+              out.write(json);
+            } finally {
+              out.close();
+            }
+          } catch (IOException e) {
+            Log.w(TAG, "Could not export latencies to " + file, e);
+          }
+        }
+      }
+    });
+  }
+
+  public void reset() {
+    mHistograms.clear();
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private void awaitFrame(final String interaction, final long token) {
+    Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+      @Override
+      public void doFrame(long frameTimeNanos) {
+        record(interaction + ".frame", token);
+      }
+    });
+  }
+
+  private void record(String name, long token) {
+    Histogram histogram = mHistograms.get(name);
+    if (histogram == null) {
+      histogram = new Histogram();
+      mHistograms.put(name, histogram);
+    }
+    histogram.record((System.nanoTime() - token) / 1e6);
+  }
+}
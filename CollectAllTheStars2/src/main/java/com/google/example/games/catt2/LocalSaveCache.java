@@ -0,0 +1,238 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a copy of each account's game on the device, so the game can be shown as soon as the app
+ * starts instead of after signing in and loading from the cloud.
+ * <p>
+ * Each account has one file holding the snapshot name and the complete game last loaded or saved.
+ * Files are replaced atomically, and one that fails its checksum is treated as missing; this is
+ * only a head start, and the cloud copy is still loaded and merged in afterwards.
+ * <p>
+ * All file access happens on the cache's own thread.  Stores are coalesced: if several are
+ * waiting for the same account, only the newest is written.
+ */
+public class LocalSaveCache {
+
+  private static final String TAG = "LocalSaveCache";
+
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * A game read back from the cache.
+   */
+  public static class Entry {
+    public final String account;
+    public final String saveName;
+    public final SaveGame saveGame;
+
+    Entry(String account, String saveName, SaveGame saveGame) {
+      this.account = account;
+      this.saveName = saveName;
+      this.saveGame = saveGame;
+    }
+  }
+
+  private final File directory;
+  private final ScheduledThreadPoolExecutor executor;
+
+  // The newest store waiting to be written for each account.  Guarded by this.
+  private final Map<String, Entry> pendingStores = new HashMap<>();
+
+  public LocalSaveCache(File directory) {
+    this.directory = directory;
+    this.executor = new ScheduledThreadPoolExecutor(1);
+  }
+
+  /**
+   * Reads the account's game.
+   *
+   * @return a task with the cached game, or with null if there is none.
+   */
+  public Task<Entry> load(final String account) {
+    final TaskCompletionSource<Entry> source = new TaskCompletionSource<>();
+    synchronized (this) {
+      if (executor.isShutdown()) {
+        // closed; there is nobody left to hand the game to.
+        source.setResult(null);
+        return source.getTask();
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          Entry pending;
+          synchronized (LocalSaveCache.this) {
+            pending = pendingStores.get(account);
+          }
+          if (pending != null) {
+            // not written yet, but newer than what is on disk.
+            source.setResult(pending);
+            return;
+          }
+          try {
+            source.setResult(read(account));
+          } catch (IOException e) {
+            Log.w(TAG, "Could not read the cached game; starting without it", e);
+            source.setResult(null);
+          }
+        }
+      });
+    }
+    return source.getTask();
+  }
+
+  /**
+   * Replaces the account's game in the background.
+   *
+   * @param saveGame - the game to keep.  It is serialized later, so it must not be modified.
+   */
+  public void store(final String account, String saveName, SaveGame saveGame) {
+    synchronized (this) {
+      boolean scheduled = pendingStores.containsKey(account);
+      pendingStores.put(account, new Entry(account, saveName, saveGame));
+      if (scheduled || executor.isShutdown()) {
+        return;
+      }
+      // submitted under the lock, so that close() can't shut the executor down in between.
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          Entry entry;
+          synchronized (LocalSaveCache.this) {
+            entry = pendingStores.remove(account);
+          }
+          try {
+            write(entry);
+          } catch (IOException e) {
+            Log.w(TAG, "Could not write the cached game", e);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Writes what is waiting and stops the cache's thread.
+   */
+  public synchronized void close() {
+    executor.shutdown();
+  }
+
+  // Account ids are opaque; keep only characters that are safe in a file name.
+  private File fileFor(String account) {
+    StringBuilder name = new StringBuilder("account-");
+    for (int i = 0; i < account.length(); i++) {
+      char c = account.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+        name.append(c);
+      } else {
+        name.append('_').append(Integer.toHexString(c));
+      }
+    }
+    return new File(directory, name.toString());
+  }
+
+  private void write(Entry entry) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(buffer);
+    data.writeInt(FORMAT_VERSION);
+    data.writeUTF(entry.saveName);
+    byte[] game = entry.saveGame.toBytes();
+    data.writeInt(game.length);
+    data.write(game);
+    data.flush();
+    byte[] payload = buffer.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    File file = fileFor(entry.account);
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      DataOutputStream record = new DataOutputStream(out);
+      record.write(payload);
+      record.writeLong(crc.getValue());
+      record.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Could not replace " + file);
+    }
+  }
+
+  private Entry read(String account) throws IOException {
+    File file = fileFor(account);
+    if (!file.exists()) {
+      return null;
+    }
+
+    byte[] record = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(record);
+    } finally {
+      in.close();
+    }
+    if (record.length < 8) {
+      Log.w(TAG, "Ignoring truncated cached game");
+      return null;
+    }
+
+    int payloadLength = record.length - 8;
+    CRC32 crc = new CRC32();
+    crc.update(record, 0, payloadLength);
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+    data.skipBytes(payloadLength);
+    if (data.readLong() != crc.getValue()) {
+      Log.w(TAG, "Ignoring corrupt cached game");
+      return null;
+    }
+
+    data = new DataInputStream(new ByteArrayInputStream(record, 0, payloadLength));
+    if (data.readInt() != FORMAT_VERSION) {
+      Log.w(TAG, "Ignoring cached game in an unknown format");
+      return null;
+    }
+    String saveName = data.readUTF();
+    byte[] game = new byte[data.readInt()];
+    data.readFully(game);
+    return new Entry(account, saveName, new SaveGame(game));
+  }
+}
@@ -17,13 +17,12 @@ package com.google.example.games.catt2;
 
 import android.app.ProgressDialog;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.Button;
 import android.widget.RatingBar;
 import android.widget.RatingBar.OnRatingBarChangeListener;
 import android.widget.TextView;
@@ -38,7 +37,6 @@ import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
 import com.google.android.gms.auth.api.signin.GoogleSignInClient;
 import com.google.android.gms.auth.api.signin.GoogleSignInOptions;
 import com.google.android.gms.common.api.ApiException;
-import com.google.android.gms.common.api.Result;
 import com.google.android.gms.drive.Drive;
 import com.google.android.gms.games.AnnotatedData;
 import com.google.android.gms.games.Games;
@@ -53,10 +51,16 @@ import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskExecutors;
+import com.google.android.gms.tasks.Tasks;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * Collect All the Stars sample. This sample demonstrates how to use the cloud save features
@@ -104,11 +108,49 @@ public class MainActivity extends AppCompatActivity implements
 
   private String currentSaveName = "snapshotTemp";
 
+  // local journal of saves that have not been committed to the cloud yet.
+  private SaveJournal mSaveJournal;
+
+  // commits the signed-in account's journaled saves, with the cover of each snapshot; null while
+  // signed out.
+  private JournalSink mJournalSink = null;
+
+  // draws and compresses cover images off the main thread.
+  private CoverImagePipeline mCoverImages;
+
+  // copy of each account's game on the device, shown before the cloud copy is loaded.
+  private LocalSaveCache mLocalSaves;
+
+  // the game shown at startup from the local copy; merged into the cloud copy once that is loaded.
+  private LocalSaveCache.Entry mWarmStart = null;
+  private boolean mLoadedFromCloud = false;
+
+  // overlaps the steps of a cold start, and times them.
+  private StartupOrchestrator mStartup;
+
+  // the silent sign-in in flight, so onResume does not start a second one.
+  private Task<GoogleSignInAccount> mSilentSignIn = null;
+
+  // games of recently played save slots, so switching back to one is instant.
+  private SaveSlotManager mSlots;
+
+  // how much memory the games of slots not being played may take.
+  private static final long SLOT_CACHE_BUDGET_BYTES = 64 * 1024;
+
+  // true while a slot shown from memory is being refreshed from the cloud; the cloud copy is
+  // merged into the game rather than replacing it.
+  private boolean mRefreshingSlot = false;
+
+  // saves the game once the player has stopped changing it for a moment.
+  private AutosaveScheduler mAutosave;
+
+  // how long the game must go unchanged before it is saved.
+  private static final long AUTOSAVE_QUIET_PERIOD_MILLIS = 2000;
+
   // world we're currently viewing
   int mWorld = 1;
   private static final int WORLD_MIN = 1;
   private static final int WORLD_MAX = 20;
-  private static final int LEVELS_PER_WORLD = 12;
 
   // level we're currently "playing"
   int mLevel = 0;
@@ -116,6 +158,12 @@ public class MainActivity extends AppCompatActivity implements
   // state of "playing" - used to make the back button work correctly
   boolean mInLevel = false;
 
+  // the views of the world grid, and what they currently show.
+  private WorldGridViewHolder mWorldGrid;
+
+  // how long the game screens take to respond to the player.
+  private final InteractionTracker mInteractions = new InteractionTracker();
+
   // progress dialog we display while we're loading state from the cloud
   ProgressDialog mLoadingDialog = null;
 
@@ -153,9 +201,14 @@ public class MainActivity extends AppCompatActivity implements
    * If the user has already signed in previously, it will not show dialog.
    */
   public void signInSilently() {
+    if (mSilentSignIn != null && !mSilentSignIn.isComplete()) {
+      // already under way; onCreate starts one before onResume gets here.
+      return;
+    }
     Log.d(TAG, "signInSilently()");
 
-    mGoogleSignInClient.silentSignIn().addOnCompleteListener(this,
+    mSilentSignIn = mGoogleSignInClient.silentSignIn();
+    mSilentSignIn.addOnCompleteListener(this,
         new OnCompleteListener<GoogleSignInAccount>() {
           @Override
           public void onComplete(@NonNull Task<GoogleSignInAccount> task) {
@@ -173,6 +226,11 @@ public class MainActivity extends AppCompatActivity implements
   public void signOut() {
     Log.d(TAG, "signOut()");
 
+    // get the last changes on their way to the cloud while we still have the account.
+    mAutosave.flush();
+    mSlots.flushDirty();
+    mSaveJournal.flushNow();
+
     mGoogleSignInClient.signOut().addOnCompleteListener(this,
         new OnCompleteListener<Void>() {
           @Override
@@ -225,10 +283,10 @@ public class MainActivity extends AppCompatActivity implements
           // Load a snapshot.
           SnapshotMetadata snapshotMetadata =
               intent.getParcelableExtra(SnapshotsClient.EXTRA_SNAPSHOT_METADATA);
-          currentSaveName = snapshotMetadata.getUniqueName();
-          loadFromSnapshot(snapshotMetadata);
+          switchToSlot(snapshotMetadata);
         } else if (intent.hasExtra(SnapshotsClient.EXTRA_SNAPSHOT_NEW)) {
           // Create a new snapshot named with a unique string
+          parkCurrentSlot();
           String unique = Long.toString(System.currentTimeMillis());
           currentSaveName = "snapshotTemp-" + unique;
           saveSnapshot(null);
@@ -243,9 +301,8 @@ public class MainActivity extends AppCompatActivity implements
           // Load a snapshot.
           SnapshotMetadata snapshotMetadata =
               intent.getParcelableExtra(SelectSnapshotActivity.SNAPSHOT_METADATA);
-          currentSaveName = snapshotMetadata.getUniqueName();
-          Log.d(TAG, "ok - loading " + currentSaveName);
-          loadFromSnapshot(snapshotMetadata);
+          Log.d(TAG, "ok - loading " + snapshotMetadata.getUniqueName());
+          switchToSlot(snapshotMetadata);
         } else {
           Log.w(TAG, "Expected snapshot metadata but found none.");
         }
@@ -301,6 +358,7 @@ public class MainActivity extends AppCompatActivity implements
 
     log("onCreate.");
     super.onCreate(savedInstanceState);
+    MainThreadWatchdog.setEnabled(BuildConfig.MAIN_THREAD_WATCHDOG);
     setContentView(R.layout.activity_main);
 
     // Create the client used to sign in.
@@ -310,6 +368,16 @@ public class MainActivity extends AppCompatActivity implements
             .requestScopes(Drive.SCOPE_APPFOLDER)
             .build());
 
+    // Start signing in now rather than in onResume, so it overlaps with the rest of startup.
+    mStartup = new StartupOrchestrator(new StartupOrchestrator.Prefetcher() {
+      @Override
+      public Task<SaveGame> prefetch(String saveName) {
+        return prefetchSnapshot(saveName);
+      }
+    });
+    mStartup.begin(StartupOrchestrator.PHASE_SIGN_IN);
+    signInSilently();
+
     for (int id : LEVEL_BUTTON_IDS) {
       findViewById(id).setOnClickListener(this);
     }
@@ -318,9 +386,126 @@ public class MainActivity extends AppCompatActivity implements
     findViewById(R.id.button_sign_in).setOnClickListener(this);
     findViewById(R.id.button_sign_out).setOnClickListener(this);
     ((RatingBar) findViewById(R.id.gameplay_rating)).setOnRatingBarChangeListener(this);
+    mWorldGrid = new WorldGridViewHolder(this, LEVEL_BUTTON_IDS, WORLD_MIN, WORLD_MAX, STAR_STRINGS);
     mSaveGame = new SaveGame();
     updateUi();
     checkPlaceholderIds();
+
+    mCoverImages = new CoverImagePipeline(getSnapshotExecutor());
+
+    mAutosave = new AutosaveScheduler(AUTOSAVE_QUIET_PERIOD_MILLIS, new Runnable() {
+      @Override
+      public void run() {
+        // save new data locally; the journal commits it to the cloud.
+        saveSnapshot(null);
+      }
+    });
+
+    // Slots the player leaves with unsaved changes are saved through the journal when evicted.
+    mSlots = new SaveSlotManager(SLOT_CACHE_BUDGET_BYTES, new SaveSlotManager.Flusher() {
+      @Override
+      public void flush(String saveName, SaveGame saveGame) {
+        mSaveJournal.append(saveName, saveGame)
+            .addOnFailureListener(TaskExecutors.MAIN_THREAD, new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                handleException(e, getString(R.string.write_snapshot_error));
+              }
+            });
+      }
+    });
+
+    // Pick up any saves that did not make it to the cloud before the app last stopped.
+    mSaveJournal = SaveJournal.getInstance(this);
+    // A signed-in account's saves are merged in when its game loads.  Saves made while signed out
+    // are only shown if nobody is about to sign in, so they never end up in someone's snapshot.
+    final GoogleSignInAccount lastAccount = GoogleSignIn.getLastSignedInAccount(this);
+    mSaveJournal.replay()
+        .addOnSuccessListener(TaskExecutors.MAIN_THREAD, new OnSuccessListener<Void>() {
+          @Override
+          public void onSuccess(Void unused) {
+            if (isSignedIn() || lastAccount != null) {
+              return;
+            }
+            SaveGame saveGame = mSaveJournal.getPending(null, currentSaveName);
+            if (saveGame != null) {
+              Log.i(TAG, "Restored unsaved progress from the journal.");
+              mSaveGame = mSaveGame.unionWith(saveGame);
+              updateUi();
+            }
+          }
+        });
+
+    // Show the last game of the last account right away, rather than after signing in and
+    // loading it from the cloud.
+    mLocalSaves = new LocalSaveCache(new File(getFilesDir(), "save_cache"));
+    if (lastAccount != null && lastAccount.getId() != null) {
+      warmStart(lastAccount.getId());
+    }
+  }
+
+  /**
+   * Shows the account's game from the local copy, unless the cloud copy was loaded first.
+   */
+  private void warmStart(final String account) {
+    mStartup.begin(StartupOrchestrator.PHASE_LOCAL_COPY);
+    mLocalSaves.load(account)
+        .addOnSuccessListener(TaskExecutors.MAIN_THREAD, new OnSuccessListener<LocalSaveCache.Entry>() {
+          @Override
+          public void onSuccess(LocalSaveCache.Entry entry) {
+            mStartup.end(StartupOrchestrator.PHASE_LOCAL_COPY);
+            if (entry == null || mLoadedFromCloud) {
+              return;
+            }
+            // sign-in may have finished first, with another account.
+            if (mSignedInAccount != null && !account.equals(mSignedInAccount.getId())) {
+              return;
+            }
+            // the player will most likely go back to this snapshot; read it while signing in.
+            mStartup.onSaveNameKnown(account, entry.saveName);
+            Log.i(TAG, "Showing the local copy of " + entry.saveName + " until the cloud copy loads.");
+            mWarmStart = entry;
+            mSaveGame = mSaveGame.unionWith(entry.saveGame);
+            updateUi();
+          }
+        });
+  }
+
+  /**
+   * Reads the named snapshot into the content cache, so loading it once the player picks it does
+   * not wait on the network.  A load that starts while this is still reading shares the read.
+   */
+  private Task<SaveGame> prefetchSnapshot(String saveName) {
+    return SnapshotCoordinator.getInstance()
+        .openReadOnly(mSnapshotsClient, saveName, SnapshotCoordinator.Priority.INTERACTIVE_LOAD)
+        .continueWith(getSnapshotExecutor(SnapshotCoordinator.Priority.INTERACTIVE_LOAD),
+            new Continuation<SnapshotCoordinator.ReadOnlySnapshot, SaveGame>() {
+              @Override
+              public SaveGame then(@NonNull Task<SnapshotCoordinator.ReadOnlySnapshot> task) throws Exception {
+                SnapshotCoordinator.ReadOnlySnapshot snapshot = task.getResult();
+                // conflicts are merged by the real load.
+                return snapshot.hasConflict() ? null : readSavedGame(snapshot);
+              }
+            });
+  }
+
+  /**
+   * Keeps a copy of the game on the device for the next start.
+   *
+   * @param saveGame - the game to keep; must not be modified afterwards.
+   */
+  private void storeLocally(SaveGame saveGame) {
+    if (mSignedInAccount != null && mSignedInAccount.getId() != null) {
+      mLocalSaves.store(mSignedInAccount.getId(), currentSaveName, saveGame);
+    }
+  }
+
+  @Override
+  protected void onDestroy() {
+    // the journal outlives the activity; it holds the account's saves until the next one signs in.
+    mSaveJournal.detach(mJournalSink);
+    mLocalSaves.close();
+    super.onDestroy();
   }
 
   // Check the sample to ensure all placeholder ids are are updated with real-world values.
@@ -376,7 +561,10 @@ public class MainActivity extends AppCompatActivity implements
       return true;
     }
     if (item.getItemId() == R.id.menu_save) {
+      // an explicit save covers any pending autosave.
+      mAutosave.cancel();
       saveSnapshot(null);
+      mSaveJournal.flushNow();
       return true;
     }
     if (item.getItemId() == R.id.menu_select) {
@@ -431,6 +619,14 @@ public class MainActivity extends AppCompatActivity implements
       mLoadingDialog.dismiss();
       mLoadingDialog = null;
     }
+    // the process may be killed once we're stopped; don't hold back any changes.
+    mAutosave.flush();
+    mSlots.flushDirty();
+    mSaveJournal.flushNow();
+    MainThreadWatchdog.dump();
+    // for analysis off the device: adb pull the file from the app's files directory.
+    mInteractions.exportTo(new File(getFilesDir(), "interaction_latency.json"),
+        getSnapshotExecutor(SnapshotCoordinator.Priority.BACKGROUND_SYNC));
     super.onStop();
   }
 
@@ -448,6 +644,7 @@ public class MainActivity extends AppCompatActivity implements
 
   private void onConnected(GoogleSignInAccount googleSignInAccount) {
     Log.d(TAG, "onConnected(): connected to Google APIs");
+    mStartup.end(StartupOrchestrator.PHASE_SIGN_IN);
     if (mSignedInAccount != googleSignInAccount) {
 
       mSignedInAccount = googleSignInAccount;
@@ -459,13 +656,50 @@ public class MainActivity extends AppCompatActivity implements
   }
 
   private void onAccountChanged(GoogleSignInAccount googleSignInAccount) {
+    mStartup.begin(StartupOrchestrator.PHASE_CLIENT);
     mSnapshotsClient = Games.getSnapshotsClient(this, googleSignInAccount);
 
+    // the game shown at startup belongs to someone else; keep it out of this account's saves.
+    boolean dropWarmStart = mWarmStart != null
+        && !mWarmStart.account.equals(googleSignInAccount.getId());
+    if (dropWarmStart) {
+      mWarmStart = null;
+    }
+
+    // drop whatever the previous account was doing; its files must not hold up this one.
+    SnapshotCoordinator.switchAccount(googleSignInAccount.getId());
+    // the previous account's unsaved changes are journaled under it before switching the journal,
+    // which then commits what this account has waiting.
+    mAutosave.flush();
+    mSlots.clear();
+    mJournalSink = new JournalSink(mSnapshotsClient);
+    mSaveJournal.setAccount(googleSignInAccount.getId(), mJournalSink);
+    if (dropWarmStart) {
+      // the previous account's game has been journaled under it; start this one from nothing.
+      mSaveGame = new SaveGame();
+      updateUi();
+    }
+
+    mStartup.end(StartupOrchestrator.PHASE_CLIENT);
+    mStartup.onAccountKnown(googleSignInAccount.getId());
+
     // Sign-in worked!
     log("Sign-in successful! Loading game state from cloud.");
 
     showSignOutBar();
 
+    // covers committed by the previous account say nothing about this one's snapshots.
+    mCoverImages.clearCommitted();
+
+    // keep cover images within what the backend accepts.
+    SnapshotCoordinator.getInstance().getMaxCoverImageSize(mSnapshotsClient)
+        .addOnSuccessListener(new OnSuccessListener<Integer>() {
+          @Override
+          public void onSuccess(Integer maxCoverImageSize) {
+            mCoverImages.setMaxCoverImageSize(maxCoverImageSize);
+          }
+        });
+
     showSnapshots(getString(R.string.title_load_game), false, false);
   }
 
@@ -473,7 +707,19 @@ public class MainActivity extends AppCompatActivity implements
 
     Log.d(TAG, "onDisconnected()");
 
+    // playing signed out needs nothing from the cloud.
+    mStartup.end(StartupOrchestrator.PHASE_SIGN_IN);
+    mStartup.onPlayable();
+
+    // keep the account's unsaved changes under it; nothing is committed until someone signs in.
+    mAutosave.flush();
+    mSlots.clear();
+    mJournalSink = null;
+    mSaveJournal.setAccount(null, null);
+
+    mSignedInAccount = null;
     mSnapshotsClient = null;
+    SnapshotCoordinator.switchAccount(null);
     showSignInBar();
   }
 
@@ -525,14 +771,18 @@ public class MainActivity extends AppCompatActivity implements
     switch (view.getId()) {
       case R.id.button_next_world:
         if (mWorld < WORLD_MAX) {
+          long token = mInteractions.begin();
           mWorld++;
           updateUi();
+          mInteractions.end("switchWorld", token);
         }
         break;
       case R.id.button_prev_world:
         if (mWorld > WORLD_MIN) {
+          long token = mInteractions.begin();
           mWorld--;
           updateUi();
+          mInteractions.end("switchWorld", token);
         }
         break;
       default:
@@ -550,24 +800,26 @@ public class MainActivity extends AppCompatActivity implements
   }
 
   /**
-   * Gets a screenshot to use with snapshots. Note that in practice you probably do not want to
-   * use this approach because tablet screen sizes can become pretty large and because the image
-   * will contain any UI and layout surrounding the area of interest.
+   * Returns the id of the signed-in account, or null if signed out.
+   */
+  private String getAccountId() {
+    return mSignedInAccount == null ? null : mSignedInAccount.getId();
+  }
+
+  /**
+   * Gets a screenshot to use with snapshots.  The screen is drawn scaled down into a reused
+   * bitmap, and compressed in the background.  Note that in practice you probably want to draw
+   * only the area of interest, since the image will contain any UI and layout surrounding it.
+   *
+   * @return a task with the screenshot, or with null if there is none.
    */
-  Bitmap getScreenShot() {
-    View root = findViewById(R.id.screen_main);
-    Bitmap coverImage;
+  Task<CoverImagePipeline.CoverImage> getScreenShot() {
+    long token = MainThreadWatchdog.begin();
     try {
-      root.setDrawingCacheEnabled(true);
-      Bitmap base = root.getDrawingCache();
-      coverImage = base.copy(base.getConfig(), false /* isMutable */);
-    } catch (Exception ex) {
-      Log.i(TAG, "Failed to create screenshot", ex);
-      coverImage = null;
+      return mCoverImages.capture(findViewById(R.id.screen_main));
     } finally {
-      root.setDrawingCacheEnabled(false);
+      MainThreadWatchdog.end("MainActivity.getScreenShot", token);
     }
-    return coverImage;
   }
 
   /**
@@ -578,6 +830,13 @@ public class MainActivity extends AppCompatActivity implements
    *                  happened
    */
   private void handleException(Exception exception, String details) {
+    if (exception instanceof CircuitBreaker.OpenException) {
+      // The backend is down and the coordinator is not even trying; don't pile up dialogs.
+      Log.i(TAG, details + " " + exception.getMessage());
+      showAlertBar(R.string.backend_unavailable);
+      return;
+    }
+
     int status = 0;
 
     if (exception instanceof ApiException) {
@@ -587,6 +846,10 @@ public class MainActivity extends AppCompatActivity implements
 
     String message = getString(R.string.status_exception_error, details, status, exception);
 
+    // What the coordinator was doing at the time, in case a file is wedged.
+    Log.w(TAG, "Snapshot coordinator state: "
+        + SnapshotCoordinator.getInstance().getDiagnostics());
+
     new AlertDialog.Builder(MainActivity.this)
         .setMessage(message)
         .setNeutralButton(android.R.string.ok, null)
@@ -614,11 +877,13 @@ public class MainActivity extends AppCompatActivity implements
    */
   void showSnapshots(String title, boolean allowAdd, boolean allowDelete) {
     int maxNumberOfSavedGamesToShow = 5;
+    mStartup.begin(StartupOrchestrator.PHASE_SNAPSHOT_LIST);
     SnapshotCoordinator.getInstance().getSelectSnapshotIntent(
         mSnapshotsClient, title, allowAdd, allowDelete, maxNumberOfSavedGamesToShow)
         .addOnCompleteListener(new OnCompleteListener<Intent>() {
           @Override
           public void onComplete(@NonNull Task<Intent> task) {
+            mStartup.end(StartupOrchestrator.PHASE_SNAPSHOT_LIST);
             if (task.isSuccessful()) {
               startActivityForResult(task.getResult(), RC_LIST_SAVED_GAMES);
             } else {
@@ -628,95 +893,302 @@ public class MainActivity extends AppCompatActivity implements
         });
   }
 
-  private Task<SnapshotsClient.DataOrConflict<Snapshot>> waitForClosedAndOpen(final SnapshotMetadata snapshotMetadata) {
+  private Task<SnapshotsClient.DataOrConflict<Snapshot>> waitForClosedAndOpen(final SnapshotMetadata snapshotMetadata,
+                                                                              SnapshotCoordinator.Priority priority) {
+    return waitForClosedAndOpen(mSnapshotsClient, snapshotMetadata, currentSaveName, priority);
+  }
+
+  /**
+   * Opens the snapshot once the file is closed.  Opens of the same file wait in line, and the
+   * file goes to the waiting open with the highest priority.
+   */
+  private Task<SnapshotsClient.DataOrConflict<Snapshot>> waitForClosedAndOpen(SnapshotsClient client,
+                                                                              final SnapshotMetadata snapshotMetadata,
+                                                                              final String saveName,
+                                                                              SnapshotCoordinator.Priority priority) {
 
     final boolean useMetadata = snapshotMetadata != null && snapshotMetadata.getUniqueName() != null;
     if (useMetadata) {
       Log.i(TAG, "Opening snapshot using metadata: " + snapshotMetadata);
     } else {
-      Log.i(TAG, "Opening snapshot using currentSaveName: " + currentSaveName);
+      Log.i(TAG, "Opening snapshot using save name: " + saveName);
     }
 
-    final String filename = useMetadata ? snapshotMetadata.getUniqueName() : currentSaveName;
+    final String filename = useMetadata ? snapshotMetadata.getUniqueName() : saveName;
+
+    Task<SnapshotsClient.DataOrConflict<Snapshot>> openTask = useMetadata
+        ? SnapshotCoordinator.getInstance().open(client, snapshotMetadata, priority)
+        : SnapshotCoordinator.getInstance().open(client, filename, true, priority);
+    return openTask.addOnFailureListener(TaskExecutors.MAIN_THREAD, new OnFailureListener() {
+      @Override
+      public void onFailure(@NonNull Exception e) {
+        handleException(e,
+            useMetadata
+                ? getString(R.string.error_opening_metadata)
+                : getString(R.string.error_opening_filename)
+        );
+      }
+    });
+  }
 
-    return SnapshotCoordinator.getInstance()
-        .waitForClosed(filename)
-        .addOnFailureListener(new OnFailureListener() {
-          @Override
-          public void onFailure(@NonNull Exception e) {
-            handleException(e, "There was a problem waiting for the file to close!");
-          }
-        })
-        .continueWithTask(new Continuation<Result, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
-          @Override
-          public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<Result> task) throws Exception {
-            Task<SnapshotsClient.DataOrConflict<Snapshot>> openTask = useMetadata
-                ? SnapshotCoordinator.getInstance().open(mSnapshotsClient, snapshotMetadata)
-                : SnapshotCoordinator.getInstance().open(mSnapshotsClient, filename, true);
-            return openTask.addOnFailureListener(new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                handleException(e,
-                    useMetadata
-                        ? getString(R.string.error_opening_metadata)
-                        : getString(R.string.error_opening_filename)
-                );
-              }
-            });
-          }
-        });
+  /**
+   * Switches to another save slot.  A recently played slot is shown from memory right away and
+   * refreshed from the cloud in the background; any other slot is loaded from the cloud.
+   */
+  private void switchToSlot(SnapshotMetadata snapshotMetadata) {
+    parkCurrentSlot();
+    currentSaveName = snapshotMetadata.getUniqueName();
+
+    SaveSlotManager.Slot slot = mSlots.take(currentSaveName);
+    if (slot == null) {
+      mRefreshingSlot = false;
+      loadFromSnapshot(snapshotMetadata);
+      return;
+    }
+
+    Log.i(TAG, "Switched to " + currentSaveName + " from memory; refreshing it from the cloud.");
+    mSaveGame = slot.saveGame;
+    if (slot.isDirty()) {
+      // its changes were never saved; they are saved like any other change now.
+      mAutosave.markDirty();
+    }
+    updateUi();
+    mRefreshingSlot = true;
+    loadFromSnapshot(snapshotMetadata, false);
+  }
+
+  /**
+   * Keeps the game of the slot being left in memory.  Unsaved changes go with it, and are saved
+   * when the slot is evicted or the app stops.
+   */
+  private void parkCurrentSlot() {
+    mSlots.park(currentSaveName, mSaveGame.clone(), mAutosave.isDirty());
+    mAutosave.cancel();
   }
 
   /**
    * Loads a Snapshot from the user's synchronized storage.
    */
   void loadFromSnapshot(final SnapshotMetadata snapshotMetadata) {
-    if (mLoadingDialog == null) {
-      mLoadingDialog = new ProgressDialog(this);
-      mLoadingDialog.setMessage(getString(R.string.loading_from_cloud));
+    loadFromSnapshot(snapshotMetadata, true);
+  }
+
+  /**
+   * Loads a Snapshot from the user's synchronized storage.
+   *
+   * @param showProgress - false to load without blocking the player, when the game being shown
+   *                     is already close to the cloud copy.
+   */
+  private void loadFromSnapshot(final SnapshotMetadata snapshotMetadata, boolean showProgress) {
+    if (showProgress) {
+      if (mLoadingDialog == null) {
+        mLoadingDialog = new ProgressDialog(this);
+        mLoadingDialog.setMessage(getString(R.string.loading_from_cloud));
+      }
+
+      mLoadingDialog.show();
+    }
+    mStartup.begin(StartupOrchestrator.PHASE_CLOUD_LOAD);
+
+    // If we already have this revision of the snapshot, there is nothing to read.
+    if (snapshotMetadata != null) {
+      SaveGame cached = SnapshotCoordinator.getInstance().getContentCache()
+          .get(snapshotMetadata, SaveGame.class);
+      if (cached != null) {
+        Log.i(TAG, "Snapshot loaded from cache.");
+        onSnapshotLoaded(cached.clone());
+        return;
+      }
     }
 
-    mLoadingDialog.show();
+    // Most loads only read, so share a read-only open with anyone else reading the file.  The
+    // user is waiting on this, so it goes ahead of any saves queued for the same file.
+    final Executor executor = getSnapshotExecutor(SnapshotCoordinator.Priority.INTERACTIVE_LOAD);
+    boolean useMetadata = snapshotMetadata != null && snapshotMetadata.getUniqueName() != null;
+    Task<SnapshotCoordinator.ReadOnlySnapshot> read = useMetadata
+        ? SnapshotCoordinator.getInstance().openReadOnly(mSnapshotsClient, snapshotMetadata,
+        SnapshotCoordinator.Priority.INTERACTIVE_LOAD)
+        : SnapshotCoordinator.getInstance().openReadOnly(mSnapshotsClient, currentSaveName,
+        SnapshotCoordinator.Priority.INTERACTIVE_LOAD);
+    read.addOnCompleteListener(executor, new OnCompleteListener<SnapshotCoordinator.ReadOnlySnapshot>() {
+      @Override
+      public void onComplete(@NonNull Task<SnapshotCoordinator.ReadOnlySnapshot> task) {
+        if (!task.isSuccessful() || task.getResult().hasConflict()) {
+          // conflicts need merging and missing files need creating; both take a writable open.
+          loadExclusively(snapshotMetadata);
+          return;
+        }
 
-    waitForClosedAndOpen(snapshotMetadata)
-        .addOnSuccessListener(new OnSuccessListener<SnapshotsClient.DataOrConflict<Snapshot>>() {
+        SaveGame loaded = null;
+        try {
+          loaded = readSavedGame(task.getResult());
+          Log.i(TAG, "Snapshot loaded read-only.");
+        } catch (IOException e) {
+          Log.e(TAG, "Error while reading snapshot contents: " + e.getMessage());
+        }
+        final SaveGame saveGame = loaded;
+        runOnUiThread(new Runnable() {
           @Override
-          public void onSuccess(SnapshotsClient.DataOrConflict<Snapshot> result) {
-
-            // if there is a conflict  - then resolve it.
-            Snapshot snapshot = processOpenDataOrConflict(RC_LOAD_SNAPSHOT, result, 0);
+          public void run() {
+            onSnapshotLoaded(saveGame);
+          }
+        });
+      }
+    });
+  }
 
-            if (snapshot == null) {
-              Log.w(TAG, "Conflict was not resolved automatically, waiting for user to resolve.");
-            } else {
-              try {
-                readSavedGame(snapshot);
-                Log.i(TAG, "Snapshot loaded.");
-              } catch (IOException e) {
-                Log.e(TAG, "Error while reading snapshot contents: " + e.getMessage());
-              }
+  /**
+   * Loads a Snapshot through a writable open, merging any conflict it is in.
+   */
+  private void loadExclusively(final SnapshotMetadata snapshotMetadata) {
+    final Executor executor = getSnapshotExecutor(SnapshotCoordinator.Priority.INTERACTIVE_LOAD);
+    final SnapshotsClient client = mSnapshotsClient;
+    waitForClosedAndOpen(snapshotMetadata, SnapshotCoordinator.Priority.INTERACTIVE_LOAD)
+        .continueWithTask(executor, new Continuation<SnapshotsClient.DataOrConflict<Snapshot>, Task<Snapshot>>() {
+          @Override
+          public Task<Snapshot> then(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) throws Exception {
+            // if there is a conflict - then merge it.
+            return resolveByMerging(client, task.getResult());
+          }
+        })
+        .addOnFailureListener(TaskExecutors.MAIN_THREAD, new OnFailureListener() {
+          @Override
+          public void onFailure(@NonNull Exception e) {
+            onSnapshotLoaded(null);
+          }
+        })
+        .addOnSuccessListener(executor, new OnSuccessListener<Snapshot>() {
+          @Override
+          public void onSuccess(Snapshot snapshot) {
+
+            // Read and decode here, on the snapshot executor, and only hand the result to the UI.
+            SaveGame loaded = null;
+            try {
+              loaded = readSavedGame(snapshot);
+              Log.i(TAG, "Snapshot loaded.");
+            } catch (IOException e) {
+              Log.e(TAG, "Error while reading snapshot contents: " + e.getMessage());
             }
 
             SnapshotCoordinator.getInstance().discardAndClose(mSnapshotsClient, snapshot)
-                .addOnFailureListener(new OnFailureListener() {
+                .addOnFailureListener(TaskExecutors.MAIN_THREAD, new OnFailureListener() {
                   @Override
                   public void onFailure(@NonNull Exception e) {
                     handleException(e, "There was a problem discarding the snapshot!");
                   }
                 });
 
-            if (mLoadingDialog != null && mLoadingDialog.isShowing()) {
-              mLoadingDialog.dismiss();
-              mLoadingDialog = null;
-            }
-            hideAlertBar();
-            updateUi();
+            final SaveGame saveGame = loaded;
+            runOnUiThread(new Runnable() {
+              @Override
+              public void run() {
+                onSnapshotLoaded(saveGame);
+              }
+            });
           }
         });
   }
 
-  private void readSavedGame(Snapshot snapshot) throws IOException {
-    mSaveGame = new SaveGame(snapshot.getSnapshotContents().readFully());
+  /**
+   * Shows a freshly loaded game.  Must be called on the main thread.
+   *
+   * @param saveGame - the loaded game, or null if nothing was loaded.
+   */
+  private void onSnapshotLoaded(SaveGame saveGame) {
+    if (saveGame != null) {
+      // keep progress that is still waiting in the journal or that was only in the local copy,
+      // and make sure the merged game is what gets committed next.
+      SaveGame pending = mSaveJournal.getPending(getAccountId(), currentSaveName);
+      SaveGame local = pending;
+      if (mWarmStart != null && mWarmStart.saveName.equals(currentSaveName)
+          && mWarmStart.account.equals(getAccountId())) {
+        // the game shown from the local copy, with whatever was played before signing in finished.
+        local = local == null ? mSaveGame : local.unionWith(mSaveGame);
+      }
+      if (mRefreshingSlot) {
+        // the slot was shown from memory, and may have been played since.
+        local = local == null ? mSaveGame : local.unionWith(mSaveGame);
+      }
+      // a pending save must be replaced even if the cloud has it all, or its commit would go back.
+      if (pending != null || (local != null && !saveGame.covers(local))) {
+        saveGame = saveGame.unionWith(local);
+        mSaveJournal.append(currentSaveName, saveGame.clone());
+      }
+      mSaveGame = saveGame;
+      mWarmStart = null;
+      mLoadedFromCloud = true;
+      mStartup.end(StartupOrchestrator.PHASE_CLOUD_LOAD);
+      mStartup.onPlayable();
+      storeLocally(saveGame.clone());
+    }
+    mRefreshingSlot = false;
+
+    if (mLoadingDialog != null && mLoadingDialog.isShowing()) {
+      mLoadingDialog.dismiss();
+      mLoadingDialog = null;
+    }
+    hideAlertBar();
+    updateUi();
+  }
+
+  /**
+   * Resolves a conflicted open by merging both versions of the game.  The failure, if any, is
+   * reported to the user.
+   *
+   * @return a task with the opened snapshot.
+   */
+  private Task<Snapshot> resolveByMerging(SnapshotsClient client,
+                                          SnapshotsClient.DataOrConflict<Snapshot> result) {
+    if (result.isConflict()) {
+      Log.i(TAG, "Open resulted in a conflict, merging.");
+    }
+    return SnapshotCoordinator.getInstance()
+        .resolveConflict(client, result, SaveGame.MERGER)
+        .addOnFailureListener(TaskExecutors.MAIN_THREAD, new OnFailureListener() {
+          @Override
+          public void onFailure(@NonNull Exception e) {
+            handleException(e, "There was a problem merging conflicting saved games!");
+          }
+        });
+  }
+
+  /**
+   * Reads the game from an opened snapshot, or takes it from the content cache if this revision
+   * was read or written before.
+   */
+  private SaveGame readSavedGame(Snapshot snapshot) throws IOException {
+    long token = MainThreadWatchdog.begin();
+    try {
+      SnapshotContentCache cache = SnapshotCoordinator.getInstance().getContentCache();
+      SaveGame saveGame = cache.get(snapshot.getMetadata(), SaveGame.class);
+      if (saveGame == null) {
+        byte[] data = snapshot.getSnapshotContents().readFully();
+        saveGame = new SaveGame(data);
+        cache.put(snapshot.getMetadata(), saveGame.clone(), data.length);
+      }
+      return saveGame.clone();
+    } finally {
+      MainThreadWatchdog.end("MainActivity.readSavedGame", token);
+    }
+  }
+
+  /**
+   * Decodes the game from the contents of a read-only open, or takes it from the content cache if
+   * this revision was read or written before.
+   */
+  private SaveGame readSavedGame(SnapshotCoordinator.ReadOnlySnapshot snapshot) throws IOException {
+    long token = MainThreadWatchdog.begin();
+    try {
+      SnapshotContentCache cache = SnapshotCoordinator.getInstance().getContentCache();
+      SaveGame saveGame = cache.get(snapshot.getMetadata(), SaveGame.class);
+      if (saveGame == null) {
+        saveGame = new SaveGame(snapshot.getContents());
+        cache.put(snapshot.getMetadata(), saveGame.clone(), snapshot.getContentsLength());
+      }
+      return saveGame.clone();
+    } finally {
+      MainThreadWatchdog.end("MainActivity.readSavedGame(ReadOnlySnapshot)", token);
+    }
   }
 
   /**
@@ -751,10 +1223,32 @@ public class MainActivity extends AppCompatActivity implements
     // Display both snapshots to the user and allow them to select the one to resolve.
     selectSnapshotItem(requestCode, snapshotList, conflict.getConflictId(), retryCount);
 
+    // The user may take longer than the coordinator's lease, and until the file is closed the
+    // open that resolves the conflict would have to wait for the lease to run out.  Let go of
+    // the file while the picker is up; resolveSnapshotConflict opens it again.
+    SnapshotCoordinator.getInstance().discardAndClose(mSnapshotsClient, snapshot);
+
     // Since we are waiting on the user for input, there is no snapshot available; return null.
     return null;
   }
 
+  /**
+   * Returns the side of the conflict that is the version the user picked, or null if neither is.
+   * Versions are told apart by when they were last modified, and by their description.
+   */
+  private static Snapshot pickedVersion(SnapshotsClient.SnapshotConflict conflict,
+                                        SnapshotMetadata picked) {
+    Snapshot[] versions = {conflict.getSnapshot(), conflict.getConflictingSnapshot()};
+    for (Snapshot version : versions) {
+      SnapshotMetadata metadata = version.getMetadata();
+      if (metadata.getLastModifiedTimestamp() == picked.getLastModifiedTimestamp()
+          && TextUtils.equals(metadata.getDescription(), picked.getDescription())) {
+        return version;
+      }
+    }
+    return null;
+  }
+
   /**
    * Handles resolving the snapshot conflict asynchronously.
    *
@@ -770,15 +1264,35 @@ public class MainActivity extends AppCompatActivity implements
                                                                                  final SnapshotMetadata snapshotMetadata) {
 
     Log.i(TAG, "Resolving conflict retry count = " + retryCount + " conflictid = " + conflictId);
-    return waitForClosedAndOpen(snapshotMetadata)
-        .continueWithTask(new Continuation<SnapshotsClient.DataOrConflict<Snapshot>, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
+    return waitForClosedAndOpen(snapshotMetadata, SnapshotCoordinator.Priority.INTERACTIVE_SAVE)
+        .continueWithTask(getSnapshotExecutor(), new Continuation<SnapshotsClient.DataOrConflict<Snapshot>, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
           @Override
           public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) throws Exception {
+            final SnapshotsClient.DataOrConflict<Snapshot> reopened = task.getResult();
+            String resolveId = conflictId;
+            Snapshot resolution = reopened.getData();
+            if (reopened.isConflict()) {
+              // the file is still in conflict, maybe under a new id; resolve with the version the
+              // user picked, whichever side of the conflict it is on now.
+              SnapshotsClient.SnapshotConflict conflict = reopened.getConflict();
+              resolveId = conflict.getConflictId();
+              resolution = pickedVersion(conflict, snapshotMetadata);
+              if (resolution == null) {
+                // the versions changed while the user was choosing; let them choose again.
+                runOnUiThread(new Runnable() {
+                  @Override
+                  public void run() {
+                    processOpenDataOrConflict(requestCode, reopened, retryCount);
+                  }
+                });
+                return Tasks.forResult(reopened);
+              }
+            }
             return SnapshotCoordinator.getInstance().resolveConflict(
                 mSnapshotsClient,
-                conflictId,
-                task.getResult().getData())
-                .addOnCompleteListener(new OnCompleteListener<SnapshotsClient.DataOrConflict<Snapshot>>() {
+                resolveId,
+                resolution)
+                .addOnCompleteListener(TaskExecutors.MAIN_THREAD, new OnCompleteListener<SnapshotsClient.DataOrConflict<Snapshot>>() {
                   @Override
                   public void onComplete(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) {
                     if (!task.isSuccessful()) {
@@ -809,23 +1323,69 @@ public class MainActivity extends AppCompatActivity implements
   /**
    * Prepares saving Snapshot to the user's synchronized storage, conditionally resolves errors,
    * and stores the Snapshot.
+   * <p>
+   * Saves of the current snapshot go to the local journal, which makes them durable right away
+   * and commits them to the cloud at the end of the flush window.  Saves to a specific snapshot,
+   * which happen while resolving conflicts, are written directly unless the backend is down, in
+   * which case they are journaled as well.
    */
   void saveSnapshot(final SnapshotMetadata snapshotMetadata) {
-    waitForClosedAndOpen(snapshotMetadata)
-        .addOnCompleteListener(new OnCompleteListener<SnapshotsClient.DataOrConflict<Snapshot>>() {
+    // Capture what to save while on the main thread; the game keeps changing while we wait.
+    final SaveGame saveGame = mSaveGame.clone();
+    final SnapshotsClient client = mSnapshotsClient;
+    storeLocally(saveGame);
+    final Task<CoverImagePipeline.CoverImage> coverImage = getScreenShot();
+    final String filename = snapshotMetadata == null
+        ? currentSaveName : snapshotMetadata.getUniqueName();
+    // the screenshot shows this snapshot; journaled saves of it are committed with it.
+    final JournalSink journalSink = mJournalSink;
+    if (journalSink != null) {
+      coverImage.addOnSuccessListener(new OnSuccessListener<CoverImagePipeline.CoverImage>() {
+        @Override
+        public void onSuccess(CoverImagePipeline.CoverImage cover) {
+          journalSink.setCover(filename, cover);
+        }
+      });
+    }
+
+    if (snapshotMetadata == null
+        || !SnapshotCoordinator.getInstance().isBackendAvailable()) {
+      // While the backend is down, keep the save locally; the journal commits it once it is back.
+      mSaveJournal.append(filename, saveGame)
+          .addOnFailureListener(TaskExecutors.MAIN_THREAD, new OnFailureListener() {
+            @Override
+            public void onFailure(@NonNull Exception e) {
+              handleException(e, getString(R.string.write_snapshot_error));
+            }
+          });
+      return;
+    }
+
+    waitForClosedAndOpen(snapshotMetadata, SnapshotCoordinator.Priority.INTERACTIVE_SAVE)
+        .addOnCompleteListener(getSnapshotExecutor(), new OnCompleteListener<SnapshotsClient.DataOrConflict<Snapshot>>() {
           @Override
           public void onComplete(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) {
-            SnapshotsClient.DataOrConflict<Snapshot> result = task.getResult();
-            Snapshot snapshotToWrite = processOpenDataOrConflict(RC_SAVE_SNAPSHOT, result, 0);
+            if (!task.isSuccessful()) {
+              // the failure has already been reported by waitForClosedAndOpen.
+              return;
+            }
 
-            if (snapshotToWrite == null) {
-              // No snapshot available yet; waiting on the user to choose one.
+            final SnapshotsClient.DataOrConflict<Snapshot> result = task.getResult();
+            if (result.isConflict()) {
+              runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                  // No snapshot available yet; waiting on the user to choose one.
+                  processOpenDataOrConflict(RC_SAVE_SNAPSHOT, result, 0);
+                }
+              });
               return;
             }
 
+            Snapshot snapshotToWrite = result.getData();
             Log.d(TAG, "Writing data to snapshot: " + snapshotToWrite.getMetadata().getUniqueName());
-            writeSnapshot(snapshotToWrite)
-                .addOnCompleteListener(new OnCompleteListener<SnapshotMetadata>() {
+            writeSnapshot(client, snapshotToWrite, saveGame, saveGame.toBytes(), coverImage)
+                .addOnCompleteListener(TaskExecutors.MAIN_THREAD, new OnCompleteListener<SnapshotMetadata>() {
                   @Override
                   public void onComplete(@NonNull Task<SnapshotMetadata> task) {
                     if (task.isSuccessful()) {
@@ -840,19 +1400,135 @@ public class MainActivity extends AppCompatActivity implements
   }
 
   /**
-   * Generates metadata, takes a screenshot, and performs the write operation for saving a
-   * snapshot.
+   * Commits journaled saves to the account that was signed in when it was made.  Made on the main
+   * thread at sign-in, so the journal's flusher never reads the activity's sign-in state, which
+   * only the main thread updates.  Keeps the latest cover of each of the account's snapshots, so
+   * a save is committed with a picture of its own snapshot.
+   */
+  private class JournalSink implements SaveJournal.Sink {
+    private final SnapshotsClient mClient;
+    private final Map<String, CoverImagePipeline.CoverImage> mCovers = new ConcurrentHashMap<>();
+
+    JournalSink(SnapshotsClient client) {
+      mClient = client;
+    }
+
+    void setCover(String filename, CoverImagePipeline.CoverImage cover) {
+      mCovers.put(filename, cover);
+    }
+
+    @Override
+    public Task<SnapshotMetadata> commit(String filename, byte[] data) {
+      return commitJournaled(mClient, filename, data, mCovers.get(filename));
+    }
+  }
+
+  /**
+   * Commits a journaled save to the cloud.  Called by the journal's flusher.
+   *
+   * @param cover - the latest cover of the snapshot, or null if none was taken.
+   */
+  private Task<SnapshotMetadata> commitJournaled(final SnapshotsClient client, String filename,
+                                                 final byte[] data,
+                                                 final CoverImagePipeline.CoverImage cover) {
+    // Nobody is waiting on a journal flush; let loads and explicit saves of the file go first.
+    final Executor executor = getSnapshotExecutor(SnapshotCoordinator.Priority.BACKGROUND_SYNC);
+    return waitForClosedAndOpen(client, null, filename, SnapshotCoordinator.Priority.BACKGROUND_SYNC)
+        .continueWithTask(executor, new Continuation<SnapshotsClient.DataOrConflict<Snapshot>, Task<SnapshotMetadata>>() {
+          @Override
+          public Task<SnapshotMetadata> then(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) throws Exception {
+            SnapshotsClient.DataOrConflict<Snapshot> result = task.getResult();
+            if (!result.isConflict()) {
+              // The save may be from an earlier session, and the cloud copy may have gained stars
+              // on another device since; fold the save into it rather than writing over it.
+              Snapshot snapshot = result.getData();
+              byte[] merged = SaveGame.MERGER.merge(
+                  snapshot.getSnapshotContents().readFully(), data);
+              Log.d(TAG, "Committing journaled save to: " + snapshot.getMetadata().getUniqueName());
+              return writeSnapshot(client, snapshot, new SaveGame(merged), merged,
+                  Tasks.forResult(cover));
+            }
+
+            // Merge the two cloud versions, then fold our own save into the merged one.
+            return resolveByMerging(client, result)
+                .continueWithTask(executor, new Continuation<Snapshot, Task<SnapshotMetadata>>() {
+                  @Override
+                  public Task<SnapshotMetadata> then(@NonNull Task<Snapshot> task) throws Exception {
+                    Snapshot snapshot = task.getResult();
+                    byte[] merged = SaveGame.MERGER.merge(
+                        snapshot.getSnapshotContents().readFully(), data);
+                    Log.d(TAG, "Committing merged save to: " + snapshot.getMetadata().getUniqueName());
+                    return writeSnapshot(client, snapshot, new SaveGame(merged), merged,
+                        Tasks.forResult(cover));
+                  }
+                });
+          }
+        });
+  }
+
+  /**
+   * Generates metadata and performs the write operation for saving a snapshot.  Once committed,
+   * the game is put in the content cache so reading this revision back needs no decoding.
+   *
+   * @param saveGame   - the game being saved; must not be modified afterwards.
+   * @param data       - the serialized game.
+   * @param coverImage - the cover image, which may still be compressing.  It is left out if it
+   *                   looks the same as the one the snapshot already has.
    */
-  private Task<SnapshotMetadata> writeSnapshot(Snapshot snapshot) {
+  private Task<SnapshotMetadata> writeSnapshot(final SnapshotsClient client,
+                                               final Snapshot snapshot, final SaveGame saveGame,
+                                               final byte[] data,
+                                               Task<CoverImagePipeline.CoverImage> coverImage) {
     // Set the data payload for the snapshot.
-    snapshot.getSnapshotContents().writeBytes(mSaveGame.toBytes());
-
-    // Save the snapshot.
-    SnapshotMetadataChange metadataChange = new SnapshotMetadataChange.Builder()
-        .setCoverImage(getScreenShot())
-        .setDescription("Modified data at: " + Calendar.getInstance().getTime())
-        .build();
-    return SnapshotCoordinator.getInstance().commitAndClose(mSnapshotsClient, snapshot, metadataChange);
+    snapshot.getSnapshotContents().writeBytes(data);
+
+    return coverImage.continueWithTask(getSnapshotExecutor(), new Continuation<CoverImagePipeline.CoverImage, Task<SnapshotMetadata>>() {
+      @Override
+      public Task<SnapshotMetadata> then(@NonNull Task<CoverImagePipeline.CoverImage> task) throws Exception {
+        // a missing cover image should not stop the save.
+        final CoverImagePipeline.CoverImage cover = task.isSuccessful() ? task.getResult() : null;
+
+        // Save the snapshot.
+        SnapshotMetadataChange.Builder builder = new SnapshotMetadataChange.Builder()
+            .setDescription("Modified data at: " + Calendar.getInstance().getTime());
+        if (cover != null) {
+          if (mCoverImages.isAlreadyCommitted(snapshot.getMetadata(), cover)) {
+            Log.d(TAG, "Cover image unchanged; leaving it out of the save.");
+          } else {
+            builder.setCoverImage(cover.decode());
+          }
+        }
+        SnapshotMetadataChange metadataChange = builder.build();
+        return SnapshotCoordinator.getInstance().commitAndClose(client, snapshot, metadataChange)
+            .addOnSuccessListener(getSnapshotExecutor(), new OnSuccessListener<SnapshotMetadata>() {
+              @Override
+              public void onSuccess(SnapshotMetadata snapshotMetadata) {
+                // whether it was sent or left out, the snapshot now shows this cover.
+                mCoverImages.onCommitted(snapshotMetadata, cover);
+              }
+            });
+      }
+    }).addOnSuccessListener(getSnapshotExecutor(), new OnSuccessListener<SnapshotMetadata>() {
+      @Override
+      public void onSuccess(SnapshotMetadata snapshotMetadata) {
+        SnapshotCoordinator.getInstance().getContentCache()
+            .put(snapshotMetadata, saveGame, data.length);
+      }
+    });
+  }
+
+  /**
+   * Returns the executor used for work on snapshots that does not touch the UI.
+   */
+  private Executor getSnapshotExecutor() {
+    return SnapshotCoordinator.getInstance().getExecutor();
+  }
+
+  /**
+   * Returns the executor used for work on snapshots at the given priority.
+   */
+  private Executor getSnapshotExecutor(SnapshotCoordinator.Priority priority) {
+    return SnapshotCoordinator.getInstance().getExecutor(priority);
   }
 
 
@@ -877,25 +1553,9 @@ public class MainActivity extends AppCompatActivity implements
    * Updates the game UI.
    */
   private void updateUi() {
-    ((TextView) findViewById(R.id.world_display)).setText(getString(R.string.world)
-        + " " + mWorld);
-    for (int i = 0; i < LEVELS_PER_WORLD; i++) {
-      int levelNo = i + 1; // levels are numbered from 1
-      Button b = (Button) findViewById(LEVEL_BUTTON_IDS[i]);
-      int stars = mSaveGame.getLevelStars(mWorld, levelNo);
-      b.setTextColor(getResources().getColor(stars > 0 ? R.color.ClearedLevelColor :
-          R.color.UnclearedLevelColor));
-      b.setText(String.valueOf(mWorld) + "-" + String.valueOf(levelNo) + "\n" +
-          STAR_STRINGS[stars]);
-    }
-    // disable world changing if we are at the end of the list.
-    Button button;
-
-    button = (Button) findViewById(R.id.button_next_world);
-    button.setEnabled(mWorld < WORLD_MAX);
-
-    button = (Button) findViewById(R.id.button_prev_world);
-    button.setEnabled(mWorld > WORLD_MIN);
+    long token = mInteractions.begin();
+    mWorldGrid.bind(mSaveGame, mWorld);
+    mInteractions.endRun("updateUi", token);
   }
 
 
@@ -905,6 +1565,7 @@ public class MainActivity extends AppCompatActivity implements
    * @param level - level to load.
    */
   private void launchLevel(int level) {
+    long token = mInteractions.begin();
     mLevel = level;
     ((TextView) findViewById(R.id.gameplay_level_display)).setText(
         getString(R.string.level) + " " + mWorld + "-" + mLevel);
@@ -913,19 +1574,22 @@ public class MainActivity extends AppCompatActivity implements
     findViewById(R.id.screen_gameplay).setVisibility(View.VISIBLE);
     findViewById(R.id.screen_main).setVisibility(View.GONE);
     mInLevel = true;
+    mInteractions.end("launchLevel", token);
   }
 
 
   @Override
   public void onRatingChanged(RatingBar ratingBar, float rating, boolean fromUser) {
+    long token = mInteractions.begin();
     mSaveGame.setLevelStars(mWorld, mLevel, (int) rating);
     updateUi();
     findViewById(R.id.screen_gameplay).setVisibility(View.GONE);
     findViewById(R.id.screen_main).setVisibility(View.VISIBLE);
 
     mInLevel = false;
-    // save new data to cloud
-    saveSnapshot(null);
+    // save once the player stops rating for a moment, rather than after every change.
+    mAutosave.markDirty();
+    mInteractions.end("rateLevel", token);
   }
 
   /**
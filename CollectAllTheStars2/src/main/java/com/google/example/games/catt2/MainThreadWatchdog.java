@@ -0,0 +1,184 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds disk I/O and serialization that runs on the main thread.
+ * <p>
+ * Hot paths that may be called from the main thread are wrapped like this:
+ * <pre>
+ *   long token = MainThreadWatchdog.begin();
+ *   try {
+ *     ...
+ *   } finally {
+ *     MainThreadWatchdog.end("SaveGame.toBytes", token);
+ *   }
+ * </pre>
+ * Calls made on the main thread are counted and timed per call site.  A call that takes longer
+ * than the threshold is reported with a stack trace of its caller, at most a few times per call
+ * site so the log stays readable.
+ * <p>
+ * The watchdog is off unless enabled, and costs one volatile read per call while off.
+ */
+public final class MainThreadWatchdog {
+
+  private static final String TAG = "MainThreadWatchdog";
+
+  // returned by begin() when the call is not watched.
+  private static final long NOT_WATCHED = -1;
+
+  // how many slow calls of each call site are reported with a stack trace.
+  private static final int MAX_SAMPLES_PER_SITE = 3;
+
+  private static volatile boolean enabled = false;
+  private static volatile long thresholdMillis = 8;
+
+  /**
+   * What the watchdog has seen of one call site.
+   */
+  public static class Stats {
+    private int calls;
+    private int slowCalls;
+    private long totalMillis;
+    private long maxMillis;
+
+    public synchronized int getCalls() {
+      return calls;
+    }
+
+    public synchronized int getSlowCalls() {
+      return slowCalls;
+    }
+
+    public synchronized long getTotalMillis() {
+      return totalMillis;
+    }
+
+    public synchronized long getMaxMillis() {
+      return maxMillis;
+    }
+
+    // returns true if this slow call should be reported with a stack trace.
+    synchronized boolean record(long millis, boolean slow) {
+      calls++;
+      totalMillis += millis;
+      maxMillis = Math.max(maxMillis, millis);
+      if (slow) {
+        slowCalls++;
+        return slowCalls <= MAX_SAMPLES_PER_SITE;
+      }
+      return false;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return calls + " calls, " + slowCalls + " slow, " + totalMillis + "ms total, "
+          + maxMillis + "ms max";
+    }
+  }
+
+  private static final ConcurrentMap<String, Stats> sites = new ConcurrentHashMap<>();
+
+  private MainThreadWatchdog() {
+  }
+
+  public static void setEnabled(boolean enable) {
+    enabled = enable;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sets how long a main thread call may take before it is reported.
+   */
+  public static void setThresholdMillis(long threshold) {
+    thresholdMillis = threshold;
+  }
+
+  /**
+   * Starts watching a call.
+   *
+   * @return a token to pass to {@link #end(String, long)}.
+   */
+  public static long begin() {
+    if (!enabled || Looper.myLooper() != Looper.getMainLooper()) {
+      return NOT_WATCHED;
+    }
+    return SystemClock.uptimeMillis();
+  }
+
+  /**
+   * Finishes watching a call, and reports it if it was slow.
+   *
+   * @param callSite - names what was called, for example "SaveGame.toBytes".
+   * @param token    - what {@link #begin()} returned.
+   */
+  public static void end(String callSite, long token) {
+    if (token == NOT_WATCHED) {
+      return;
+    }
+    long millis = SystemClock.uptimeMillis() - token;
+    boolean slow = millis >= thresholdMillis;
+
+    Stats stats = sites.get(callSite);
+    if (stats == null) {
+      Stats created = new Stats();
+      stats = sites.putIfAbsent(callSite, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    if (stats.record(millis, slow)) {
+      // the trace shows who called the hot path on the main thread.
+      Log.w(TAG, callSite + " took " + millis + "ms on the main thread",
+          new Throwable("called from"));
+    }
+  }
+
+  /**
+   * Returns what has been seen of each call site, sorted by name.
+   */
+  public static Map<String, Stats> getStats() {
+    return new TreeMap<>(sites);
+  }
+
+  /**
+   * Logs what has been seen of each call site.
+   */
+  public static void dump() {
+    if (sites.isEmpty()) {
+      return;
+    }
+    for (Map.Entry<String, Stats> entry : getStats().entrySet()) {
+      Log.i(TAG, entry.getKey() + ": " + entry.getValue());
+    }
+  }
+
+  public static void reset() {
+    sites.clear();
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.common.api.CommonStatusCodes;
+
+import java.util.Random;
+
+/**
+ * Decides which failed snapshot operations are worth trying again, and how long to wait first.
+ * <p/>
+ * Only {@link ApiException}s with a status code that describes a passing condition, such as a
+ * network error or a timeout, are transient.  Everything else, including a missing sign-in or a
+ * bad request, fails the same way every time and is permanent.
+ * <p/>
+ * The delay before retry n is drawn uniformly from [0, min(maxDelay, baseDelay * 2^(n-1))], the
+ * "full jitter" scheme, so that clients that failed together do not retry together.
+ */
+public class RetryPolicy {
+
+  /**
+   * A policy that never retries.
+   */
+  public static final RetryPolicy NO_RETRIES = new RetryPolicy(1, 0, 0);
+
+  private static final int[] TRANSIENT_STATUS_CODES = {
+      CommonStatusCodes.NETWORK_ERROR,
+      CommonStatusCodes.INTERNAL_ERROR,
+      CommonStatusCodes.TIMEOUT,
+      CommonStatusCodes.INTERRUPTED,
+      CommonStatusCodes.SERVICE_DISCONNECTED,
+  };
+
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+
+  private final Random random = new Random();
+
+  /**
+   * @param maxAttempts     - how many times to try in total, including the first attempt.
+   * @param baseDelayMillis - the upper bound of the delay before the first retry.
+   * @param maxDelayMillis  - the cap on the upper bound of any delay.
+   */
+  public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be at least 1");
+    }
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Returns true if the failure may go away by itself.
+   */
+  public boolean isTransient(Exception e) {
+    if (!(e instanceof ApiException)) {
+      return false;
+    }
+    int statusCode = ((ApiException) e).getStatusCode();
+    for (int code : TRANSIENT_STATUS_CODES) {
+      if (code == statusCode) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns how long to wait before the next attempt.
+   *
+   * @param failedAttempts - the number of attempts that have failed so far, at least 1.
+   */
+  public long getDelayMillis(int failedAttempts) {
+    long bound = baseDelayMillis;
+    for (int i = 1; i < failedAttempts && bound < maxDelayMillis; i++) {
+      bound *= 2;
+    }
+    bound = Math.min(bound, maxDelayMillis);
+    if (bound <= 0) {
+      return 0;
+    }
+    synchronized (random) {
+      return (long) (random.nextDouble() * (bound + 1));
+    }
+  }
+}
@@ -45,6 +45,16 @@ public class SaveGame {
   // Minimum and maximum stars the player can have on a level
   public static final int MIN_STARS = 0, MAX_STARS = 5;
 
+  // Resolves conflicting saves without asking the user, by keeping the best star rating of
+  // each level from either version.
+  static final SnapshotCoordinator.SnapshotMerger MERGER =
+      new SnapshotCoordinator.SnapshotMerger() {
+        @Override
+        public byte[] merge(byte[] contents, byte[] conflictingContents) {
+          return new SaveGame(contents).unionWith(new SaveGame(conflictingContents)).toBytes();
+        }
+      };
+
   /**
    * Constructs an empty SaveGame object. No stars on no levels.
    */
@@ -71,7 +81,12 @@ public class SaveGame {
    * Constructs a SaveGame object by reading from a SharedPreferences.
    */
   public SaveGame(SharedPreferences sp, String key) {
-    loadFromJson(sp.getString(key, ""));
+    long token = MainThreadWatchdog.begin();
+    try {
+      loadFromJson(sp.getString(key, ""));
+    } finally {
+      MainThreadWatchdog.end("SaveGame.<init>(SharedPreferences)", token);
+    }
   }
 
   /**
@@ -111,7 +126,12 @@ public class SaveGame {
    * Serializes this SaveGame to an array of bytes.
    */
   public byte[] toBytes() {
-    return toString().getBytes();
+    long token = MainThreadWatchdog.begin();
+    try {
+      return toString().getBytes();
+    } finally {
+      MainThreadWatchdog.end("SaveGame.toBytes", token);
+    }
   }
 
   /**
@@ -161,6 +181,19 @@ public class SaveGame {
     return result;
   }
 
+  /**
+   * Returns whether this SaveGame has at least as many stars as the given one on every level,
+   * in which case taking the union with it would change nothing.
+   */
+  public boolean covers(SaveGame other) {
+    for (String levelName : other.mLevelStars.keySet()) {
+      if (other.getLevelStars(levelName) > getLevelStars(levelName)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Returns a clone of this SaveGame object.
    */
@@ -190,9 +223,14 @@ public class SaveGame {
    * Save this SaveGame object to a SharedPreferences.
    */
   public void save(SharedPreferences sp, String key) {
-    SharedPreferences.Editor spe = sp.edit();
-    spe.putString(key, toString());
-    spe.apply();
+    long token = MainThreadWatchdog.begin();
+    try {
+      SharedPreferences.Editor spe = sp.edit();
+      spe.putString(key, toString());
+      spe.apply();
+    } finally {
+      MainThreadWatchdog.end("SaveGame.save", token);
+    }
   }
 
   /**
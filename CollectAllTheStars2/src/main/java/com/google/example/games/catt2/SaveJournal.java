@@ -0,0 +1,536 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.games.snapshot.SnapshotMetadata;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead journal for saved games.
+ * <p>
+ * A save is appended to a file on the device and fsynced before it is reported as done, so it
+ * survives the app being killed without waiting for the cloud.  A background flusher then commits
+ * the newest journaled save of each snapshot through the {@link Sink} once per flush window, and
+ * drops the entries it has committed.  Anything left in the journal when the app dies is picked
+ * up again by {@link #replay()} on the next start.
+ * <p>
+ * Every save holds the complete game, so only the newest entry per snapshot ever needs to be
+ * committed; older ones are only kept until that commit succeeds.
+ * <p>
+ * Each entry records the account that was signed in when it was appended, set with
+ * {@link #setAccount(String, Sink)}, since every account has its own snapshots under the same
+ * names.  Only the signed-in account's entries are flushed, and nothing is flushed while signed
+ * out.  The entries of other accounts, and those made while signed out, are held until that
+ * account signs in again; only the newest of each snapshot is kept meanwhile.
+ * <p>
+ * There is one journal per process, like there is one {@link SnapshotCoordinator}, so an activity
+ * that is recreated keeps using the journal of the one before it.  All file access happens on the
+ * journal's own thread.
+ */
+public class SaveJournal {
+
+  private static final String TAG = "SaveJournal";
+
+  private static final String FILENAME = "snapshot_journal";
+
+  // how long saves are collected before they are committed to the cloud.
+  private static final long FLUSH_WINDOW_MILLIS = 5000;
+
+  private static SaveJournal instance;
+
+  /**
+   * Commits journaled saves to the cloud, for one account.  A sink is handed over with its account,
+   * so it should hold everything its commits need rather than read it from elsewhere when called.
+   */
+  public interface Sink {
+    /**
+     * Writes the data to the account's named snapshot.  The journal entry is dropped once the
+     * returned task succeeds; if it fails the entry is retried in the next flush window.  Called
+     * on the journal's thread.
+     */
+    Task<SnapshotMetadata> commit(String filename, byte[] data);
+  }
+
+  // One journaled save.
+  private static class Entry {
+    final long sequence;
+    // null if nobody was signed in.
+    final String account;
+    final String filename;
+    final byte[] data;
+
+    Entry(long sequence, String account, String filename, byte[] data) {
+      this.sequence = sequence;
+      this.account = account;
+      this.filename = filename;
+      this.data = data;
+    }
+
+    boolean isOf(String account, String filename) {
+      return (this.account == null ? account == null : this.account.equals(account))
+          && this.filename.equals(filename);
+    }
+  }
+
+  private final File file;
+  private final long flushWindowMillis;
+  private final ScheduledThreadPoolExecutor executor;
+
+  // Entries that are on disk but not yet committed, in sequence order.  Guarded by this.
+  private final List<Entry> entries = new ArrayList<>();
+  // Snapshots with a commit in flight.  Only touched on the journal thread.
+  private final Set<String> flushing = new HashSet<>();
+
+  private long nextSequence;
+  private boolean flushScheduled;
+  // The signed-in account, or null, and the sink that commits its saves.  Guarded by this.
+  private String account;
+  private Sink sink;
+
+  // What was left over from the previous run; read once per process.
+  private Task<Void> replayed;
+
+  /**
+   * Returns the process's journal, creating it if needed.
+   */
+  public static synchronized SaveJournal getInstance(Context context) {
+    if (instance == null) {
+      instance = new SaveJournal(new File(context.getApplicationContext().getFilesDir(), FILENAME),
+          FLUSH_WINDOW_MILLIS);
+    }
+    return instance;
+  }
+
+  SaveJournal(File file, long flushWindowMillis) {
+    this.file = file;
+    this.flushWindowMillis = flushWindowMillis;
+    this.executor = new ScheduledThreadPoolExecutor(1);
+  }
+
+  /**
+   * Reads back the entries left over from a previous run and schedules them to be flushed.  Torn
+   * or corrupt records at the end of the file, from a crash in the middle of an append, are cut
+   * off.  The file is read the first time this is called, which must be before the first append;
+   * later calls return the same task.  Once the task succeeds, what was left is available from
+   * {@link #getPending(String, String)}.
+   */
+  public synchronized Task<Void> replay() {
+    if (replayed != null) {
+      return replayed;
+    }
+    final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+    replayed = source.getTask();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          List<Entry> recovered = readJournal();
+          synchronized (SaveJournal.this) {
+            entries.addAll(0, recovered);
+            for (Entry entry : recovered) {
+              nextSequence = Math.max(nextSequence, entry.sequence + 1);
+            }
+          }
+          Log.d(TAG, "Replayed " + recovered.size() + " journal entries");
+
+          scheduleFlush();
+          source.setResult(null);
+        } catch (IOException e) {
+          Log.e(TAG, "Could not replay the save journal", e);
+          source.setException(e);
+        }
+      }
+    });
+    return source.getTask();
+  }
+
+  /**
+   * Sets the account that is signed in, or null when signed out.  Saves appended from now on
+   * belong to it, and its held entries are flushed right away.  Must be called on the thread that
+   * appends, so every save goes to the account it was made under.
+   *
+   * @param account - the signed-in account, or null.
+   * @param sink    - commits the account's saves, or null if signed out.
+   */
+  public void setAccount(String account, Sink sink) {
+    synchronized (this) {
+      this.account = account;
+      this.sink = account == null ? null : sink;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        pruneHeld();
+        flush();
+      }
+    });
+  }
+
+  /**
+   * Appends a save of the named snapshot, for the account that is signed in.  The task completes
+   * once the save is on disk, and the save is committed to the cloud at the end of the current
+   * flush window.
+   *
+   * @param filename - the unique name of the snapshot.
+   * @param saveGame - the game to save.  It is serialized later, so it must not be modified.
+   */
+  public Task<Void> append(final String filename, final SaveGame saveGame) {
+    final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+    final String owner;
+    synchronized (this) {
+      owner = account;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Entry entry;
+        synchronized (SaveJournal.this) {
+          entry = new Entry(nextSequence++, owner, filename, saveGame.toBytes());
+        }
+        try {
+          writeRecord(entry);
+        } catch (IOException e) {
+          Log.e(TAG, "Could not append to the save journal", e);
+          source.setException(e);
+          return;
+        }
+        synchronized (SaveJournal.this) {
+          entries.add(entry);
+        }
+        scheduleFlush();
+        source.setResult(null);
+      }
+    });
+    return source.getTask();
+  }
+
+  /**
+   * Returns the newest save of the account's named snapshot that has not been committed yet, or
+   * null if the cloud is up to date.
+   *
+   * @param account - the account, or null for saves made while signed out.
+   */
+  public synchronized SaveGame getPending(String account, String filename) {
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      Entry entry = entries.get(i);
+      if (entry.isOf(account, filename)) {
+        return new SaveGame(entry.data);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Commits pending saves now rather than at the end of the flush window.  Does nothing while
+   * signed out.
+   */
+  public void flushNow() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    });
+  }
+
+  /**
+   * Stops committing through the sink, if it is still the one in use, for example because the
+   * activity it belongs to is going away.  The account stays signed in to the journal, and its
+   * saves are held until the next {@link #setAccount(String, Sink)}.
+   */
+  public synchronized void detach(Sink sink) {
+    if (this.sink == sink) {
+      this.sink = null;
+    }
+  }
+
+  // Schedules a flush at the end of the window, unless signed out: nothing could be committed, and
+  // setAccount flushes once someone signs in.
+  private void scheduleFlush() {
+    synchronized (this) {
+      if (flushScheduled || sink == null) {
+        return;
+      }
+      flushScheduled = true;
+    }
+    executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, flushWindowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // Commits the newest entry of each of the signed-in account's snapshots.  Runs on the journal
+  // thread.
+  private void flush() {
+    final String current;
+    final Sink currentSink;
+    synchronized (this) {
+      flushScheduled = false;
+      current = account;
+      currentSink = sink;
+    }
+    if (currentSink == null) {
+      return;
+    }
+
+    for (final Entry entry : newestEntries(current).values()) {
+      if (!flushing.add(entry.filename)) {
+        // the previous commit is still running; this one goes in the next window.
+        scheduleFlush();
+        continue;
+      }
+
+      Task<SnapshotMetadata> commit;
+      try {
+        commit = currentSink.commit(entry.filename, entry.data);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Flush of " + entry.filename + " failed", e);
+        flushing.remove(entry.filename);
+        scheduleFlush();
+        continue;
+      }
+
+      commit.addOnCompleteListener(executor, new OnCompleteListener<SnapshotMetadata>() {
+        @Override
+        public void onComplete(@NonNull Task<SnapshotMetadata> task) {
+          flushing.remove(entry.filename);
+          if (task.isSuccessful()) {
+            Log.d(TAG, "Flushed " + entry.filename + " up to entry " + entry.sequence);
+            committed(entry);
+          } else {
+            Log.w(TAG, "Flush of " + entry.filename + " failed, will retry",
+                task.getException());
+            scheduleFlush();
+          }
+        }
+      });
+    }
+  }
+
+  // Drops the entries of the snapshot that are no newer than the committed one.
+  private void committed(Entry flushed) {
+    boolean morePending = false;
+    synchronized (this) {
+      Iterator<Entry> it = entries.iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        if (entry.isOf(flushed.account, flushed.filename)) {
+          if (entry.sequence <= flushed.sequence) {
+            it.remove();
+          } else {
+            morePending = true;
+          }
+        }
+      }
+    }
+
+    try {
+      compact();
+    } catch (IOException e) {
+      // the committed entries stay on disk and get committed again after a restart, which is
+      // harmless since they are older than what the cloud has.
+      Log.w(TAG, "Could not compact the save journal", e);
+    }
+
+    if (morePending) {
+      scheduleFlush();
+    }
+  }
+
+  // Returns the newest entry of each of the account's snapshots, by snapshot name.
+  private Map<String, Entry> newestEntries(String account) {
+    Map<String, Entry> newest = new HashMap<>();
+    synchronized (this) {
+      for (Entry entry : entries) {
+        if (entry.isOf(account, entry.filename)) {
+          newest.put(entry.filename, entry);
+        }
+      }
+    }
+    return newest;
+  }
+
+  // Drops the held entries of other accounts that a newer entry of the same snapshot supersedes,
+  // so the journal does not grow while they wait.  Runs on the journal thread.
+  private void pruneHeld() {
+    boolean pruned = false;
+    synchronized (this) {
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        Entry entry = entries.get(i);
+        if (entry.isOf(account, entry.filename)) {
+          // the signed-in account's entries are dropped as they are committed.
+          continue;
+        }
+        for (int j = i - 1; j >= 0; j--) {
+          if (entries.get(j).isOf(entry.account, entry.filename)) {
+            entries.remove(j);
+            i--;
+            pruned = true;
+          }
+        }
+      }
+    }
+    if (!pruned) {
+      return;
+    }
+    try {
+      compact();
+    } catch (IOException e) {
+      // the superseded entries are pruned again next time.
+      Log.w(TAG, "Could not compact the save journal", e);
+    }
+  }
+
+  private static byte[] encode(Entry entry) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream(entry.data.length + 64);
+    DataOutputStream out = new DataOutputStream(body);
+    out.writeLong(entry.sequence);
+    // account ids are never empty, so an empty one means signed out.
+    out.writeUTF(entry.account == null ? "" : entry.account);
+    out.writeUTF(entry.filename);
+    out.writeInt(entry.data.length);
+    out.write(entry.data);
+    out.flush();
+    byte[] bytes = body.toByteArray();
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+
+    ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 12);
+    out = new DataOutputStream(record);
+    out.writeInt(bytes.length);
+    out.writeLong(crc.getValue());
+    out.write(bytes);
+    out.flush();
+    return record.toByteArray();
+  }
+
+  private void writeRecord(Entry entry) throws IOException {
+    byte[] record = encode(entry);
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(record);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  // Rewrites the journal with only the entries that are still pending.
+  private void compact() throws IOException {
+    List<Entry> pending;
+    synchronized (this) {
+      pending = new ArrayList<>(entries);
+    }
+
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      for (Entry entry : pending) {
+        out.write(encode(entry));
+      }
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Could not replace " + file);
+    }
+  }
+
+  private List<Entry> readJournal() throws IOException {
+    List<Entry> recovered = new ArrayList<>();
+    if (!file.exists()) {
+      return recovered;
+    }
+
+    long goodLength = 0;
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      while (true) {
+        int length = in.readInt();
+        long checksum = in.readLong();
+        if (length < 0 || length > file.length()) {
+          break;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if (crc.getValue() != checksum) {
+          break;
+        }
+
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(bytes));
+        long sequence = body.readLong();
+        String account = body.readUTF();
+        String filename = body.readUTF();
+        byte[] data = new byte[body.readInt()];
+        body.readFully(data);
+        recovered.add(new Entry(sequence, account.isEmpty() ? null : account, filename, data));
+
+        goodLength += 12 + length;
+      }
+    } catch (EOFException e) {
+      // end of the journal, possibly in the middle of a record that was being written.
+    } finally {
+      in.close();
+    }
+
+    if (goodLength < file.length()) {
+      Log.w(TAG, "Truncating " + (file.length() - goodLength) + " bytes of torn journal");
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(goodLength);
+        raf.getFD().sync();
+      } finally {
+        raf.close();
+      }
+    }
+    return recovered;
+  }
+}
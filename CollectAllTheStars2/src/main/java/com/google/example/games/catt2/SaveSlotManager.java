@@ -0,0 +1,174 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the games of recently used save slots in memory, so switching back to one does not have
+ * to wait for the cloud.
+ * <p>
+ * The slot being played is not kept here; it is the activity's current game.  When the player
+ * switches away from it, it is parked here, and taken back out when they switch to it again.
+ * Parked slots are evicted least recently used first once their estimated size goes over the
+ * budget.
+ * <p>
+ * A slot parked with unsaved changes is dirty.  It is not saved right away but handed to the
+ * {@link Flusher} when it is evicted, or when {@link #flushDirty()} is called, for example
+ * because the app is stopping.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class SaveSlotManager {
+
+  private static final String TAG = "SaveSlotManager";
+
+  // rough cost of a game in memory: the map entry, key and value of each level, plus the object.
+  private static final int BYTES_PER_GAME = 64;
+  private static final int BYTES_PER_LEVEL = 48;
+
+  /**
+   * Saves a slot's game.
+   */
+  public interface Flusher {
+    /**
+     * @param saveGame - the game to save; it is not used by the manager afterwards.
+     */
+    void flush(String saveName, SaveGame saveGame);
+  }
+
+  /**
+   * A parked slot.
+   */
+  public static class Slot {
+    public final String saveName;
+    public final SaveGame saveGame;
+    final int sizeBytes;
+    // cleared once the manager has saved the game.
+    boolean dirty;
+
+    Slot(String saveName, SaveGame saveGame, boolean dirty) {
+      this.saveName = saveName;
+      this.saveGame = saveGame;
+      this.dirty = dirty;
+      this.sizeBytes = BYTES_PER_GAME + BYTES_PER_LEVEL * saveGame.mLevelStars.size();
+    }
+
+    public boolean isDirty() {
+      return dirty;
+    }
+  }
+
+  private final long mBudgetBytes;
+  private final Flusher mFlusher;
+
+  // parked slots, least recently used first.
+  private final LinkedHashMap<String, Slot> mSlots = new LinkedHashMap<>(16, 0.75f, true);
+  private long mSizeBytes = 0;
+
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  public SaveSlotManager(long budgetBytes, Flusher flusher) {
+    mBudgetBytes = budgetBytes;
+    mFlusher = flusher;
+  }
+
+  /**
+   * Parks the game of a slot the player is leaving, evicting other slots if needed.
+   *
+   * @param saveGame - the slot's game; must not be modified afterwards.
+   * @param dirty    - true if the game has changes that have not been saved.
+   */
+  public void park(String saveName, SaveGame saveGame, boolean dirty) {
+    Slot previous = mSlots.remove(saveName);
+    if (previous != null) {
+      mSizeBytes -= previous.sizeBytes;
+      dirty |= previous.dirty;
+    }
+    Slot slot = new Slot(saveName, saveGame, dirty);
+    mSlots.put(saveName, slot);
+    mSizeBytes += slot.sizeBytes;
+    trim();
+  }
+
+  /**
+   * Takes a parked slot out to play it.
+   *
+   * @return the slot, or null if it is not parked here.
+   */
+  public Slot take(String saveName) {
+    Slot slot = mSlots.remove(saveName);
+    if (slot == null) {
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    mSizeBytes -= slot.sizeBytes;
+    return slot;
+  }
+
+  /**
+   * Saves all dirty slots.  They stay parked, now clean.
+   */
+  public void flushDirty() {
+    // iterating the values does not count as a use, so the order is left alone.
+    for (Slot slot : mSlots.values()) {
+      if (slot.dirty) {
+        mFlusher.flush(slot.saveName, slot.saveGame.clone());
+        slot.dirty = false;
+      }
+    }
+  }
+
+  /**
+   * Saves the dirty slots and forgets all of them, for when the player signs in as someone else.
+   */
+  public void clear() {
+    flushDirty();
+    mSlots.clear();
+    mSizeBytes = 0;
+  }
+
+  public long getSizeBytes() {
+    return mSizeBytes;
+  }
+
+  public long getHitCount() {
+    return mHits;
+  }
+
+  public long getMissCount() {
+    return mMisses;
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<String, Slot>> it = mSlots.entrySet().iterator();
+    while (mSizeBytes > mBudgetBytes && it.hasNext()) {
+      Slot slot = it.next().getValue();
+      it.remove();
+      mSizeBytes -= slot.sizeBytes;
+      if (slot.dirty) {
+        mFlusher.flush(slot.saveName, slot.saveGame);
+      }
+      Log.d(TAG, "Evicted slot " + slot.saveName + (slot.dirty ? " after saving it" : ""));
+    }
+  }
+}
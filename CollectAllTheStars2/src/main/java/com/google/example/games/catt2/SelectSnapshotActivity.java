@@ -16,24 +16,26 @@ package com.google.example.games.catt2;
 
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import com.google.android.gms.common.images.ImageManager;
 import com.google.android.gms.games.snapshot.Snapshot;
 import com.google.android.gms.games.snapshot.SnapshotMetadata;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Activity to select a snapshot from a list of snapshots or snapshot metadata.  The intended
@@ -65,6 +67,8 @@ public class SelectSnapshotActivity extends AppCompatActivity implements Adapter
 
   private int mRetryCount;
 
+  private SnapshotListAdapter<SnapshotMetadata> mAdapter;
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
@@ -79,18 +83,41 @@ public class SelectSnapshotActivity extends AppCompatActivity implements Adapter
       snapshotMetadataList = intent.getParcelableArrayListExtra(SNAPSHOT_METADATA_LIST);
       // set a custom list adapter that can display the image and other
       // information about a snapshot.
-      vw.setAdapter(
-          new SnapshotListAdapter<SnapshotMetadata>(this, snapshotMetadataList));
+      mAdapter = new SnapshotListAdapter<>(this, snapshotMetadataList);
+      vw.setAdapter(mAdapter);
 
       mConflictId = intent.getStringExtra(CONFLICT_ID);
       mRetryCount = intent.getIntExtra(RETRY_COUNT, 0);
 
       // register this class as the listener for when an item is selected
       vw.setOnItemClickListener(this);
+      vw.setRecyclerListener(new AbsListView.RecyclerListener() {
+        @Override
+        public void onMovedToScrapHeap(View view) {
+          mAdapter.onRowRecycled(view);
+        }
+      });
     }
   }
 
 
+  @Override
+  protected void onResume() {
+    super.onResume();
+    if (mAdapter != null) {
+      mAdapter.refreshAges();
+    }
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_BACKGROUND) {
+      // the covers are on disk, and quick to read back.
+      ThumbnailCache.getInstance(this).trimMemory();
+    }
+  }
+
   @Override
   public void onItemClick(AdapterView<?> adapterView, View view, int position, long listId) {
 
@@ -110,46 +137,168 @@ public class SelectSnapshotActivity extends AppCompatActivity implements Adapter
   }
 
   /**
-   * Custom mSnapshotMetadataArrayList adapter which holds the snapshot metadata.  This is used
-   * to
-   * display the image and information for each snapshot.
+   * Custom adapter which holds the snapshot metadata.  This is used to display the image and
+   * information for each snapshot.
+   * <p>
+   * Row views are recycled, and each keeps its child views in a {@link ViewHolder}.  The text of
+   * each row is worked out when the list is set, so binding a row while scrolling allocates
+   * nothing, and a row that is rebound to what it already shows is left alone.  Covers come from
+   * the {@link ThumbnailCache}, and the load of a row scrolled off screen is cancelled.  The list
+   * is fixed for the life of the screen; only the ages are refreshed.
    */
-  static class SnapshotListAdapter<T> extends ArrayAdapter<T> {
+  static class SnapshotListAdapter<T> extends BaseAdapter {
+
+    // What a row shows, worked out once per snapshot version.
+    private static class Row {
+      final SnapshotMetadata metadata;
+      final String description;
+      final Uri cover;
+      final String coverKey;
+      String age;
+
+      Row(SnapshotMetadata metadata, String age) {
+        this.metadata = metadata;
+        this.description = metadata.getDescription();
+        this.cover = metadata.getCoverImageUri();
+        this.coverKey = ThumbnailCache.keyOf(cover, metadata.getLastModifiedTimestamp());
+        this.age = age;
+      }
+    }
 
+    // The child views of a row, kept in the row view's tag.
+    private static class ViewHolder {
+      final TextView label;
+      final TextView age;
+      final ImageView image;
+      // the row this view shows, to skip rebinding it.
+      Row bound;
+      // the cover on its way to the image, if any.
+      ThumbnailCache.Request thumbnail;
+
+      ViewHolder(View rowView) {
+        label = (TextView) rowView.findViewById(R.id.label);
+        age = (TextView) rowView.findViewById(R.id.age);
+        image = (ImageView) rowView.findViewById(R.id.snapshot_icon);
+      }
+    }
+
+    private final Context mContext;
+    private final LayoutInflater mInflater;
+    private final ThumbnailCache mThumbnails;
+    // the widest a cover can be shown, for rows bound before the list is laid out.
+    private final int mScreenWidth;
+
+    private final List<T> mItems;
+    private final List<Row> mRows;
+
+    public SnapshotListAdapter(AppCompatActivity activity, List<T> data) {
+      mContext = activity;
+      mInflater = LayoutInflater.from(activity);
+      mThumbnails = ThumbnailCache.getInstance(activity);
+      mScreenWidth = activity.getResources().getDisplayMetrics().widthPixels;
+      mItems = data == null ? new ArrayList<T>() : new ArrayList<>(data);
+      mRows = new ArrayList<>(mItems.size());
+      long now = System.currentTimeMillis();
+      for (T item : mItems) {
+        SnapshotMetadata metadata = getMetadata(item);
+        mRows.add(new Row(metadata, getAge(now, metadata.getLastModifiedTimestamp())));
+      }
+    }
 
-    public SnapshotListAdapter(AppCompatActivity activity, ArrayList<T> data) {
-      super(activity, R.layout.snapshotlayout, data);
+    /**
+     * Brings the "3 days ago" text of each row up to date, notifying the list only if some row's
+     * text changed.
+     */
+    public void refreshAges() {
+      long now = System.currentTimeMillis();
+      boolean changed = false;
+      for (Row row : mRows) {
+        String age = getAge(now, row.metadata.getLastModifiedTimestamp());
+        if (!age.equals(row.age)) {
+          row.age = age;
+          changed = true;
+        }
+      }
+      if (changed) {
+        notifyDataSetChanged();
+      }
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
+    public int getCount() {
+      return mItems.size();
+    }
 
-      // load the view used for each item in the mSnapshotMetadataArrayList
-      LayoutInflater inflater = (LayoutInflater) getContext().getSystemService(
-          Context.LAYOUT_INFLATER_SERVICE);
-      View rowView = inflater.inflate(R.layout.snapshotlayout, parent, false);
+    @Override
+    public T getItem(int position) {
+      return mItems.get(position);
+    }
 
-      // get the elements of the view which display the specific data for the snapshot.
-      TextView textView = (TextView) rowView.findViewById(R.id.label);
-      TextView ageView = (TextView) rowView.findViewById(R.id.age);
-      ImageView imageView = (ImageView) rowView.findViewById(R.id.snapshot_icon);
+    @Override
+    public long getItemId(int position) {
+      return position;
+    }
 
-      SnapshotMetadata snapshotMetadata;
-      T item = getItem(position);
-      if (item instanceof Snapshot) {
-        snapshotMetadata = ((Snapshot) item).getMetadata();
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+      View rowView = convertView;
+      ViewHolder holder;
+      if (rowView == null) {
+        rowView = mInflater.inflate(R.layout.snapshotlayout, parent, false);
+        holder = new ViewHolder(rowView);
+        rowView.setTag(holder);
       } else {
-        snapshotMetadata = (SnapshotMetadata) item;
+        holder = (ViewHolder) rowView.getTag();
       }
-      textView.setText(snapshotMetadata.getDescription());
-      ageView.setText(getAge(snapshotMetadata.getLastModifiedTimestamp()));
-      ImageManager.create(getContext())
-          .loadImage(imageView, snapshotMetadata.getCoverImageUri());
+
+      Row row = mRows.get(position);
+      if (holder.bound != row) {
+        holder.label.setText(row.description);
+        if (holder.thumbnail != null) {
+          holder.thumbnail.cancel();
+        }
+        holder.thumbnail = mThumbnails.load(holder.image, row.cover, row.coverKey,
+            getThumbnailWidth(holder.image, parent));
+        holder.bound = row;
+      }
+      // the age can change while the row stays bound.
+      holder.age.setText(row.age);
 
       return rowView;
+    }
 
+    // Covers are shown across the whole row.  A new row is not laid out yet when it is first
+    // bound, so its width is taken from the list.
+    private int getThumbnailWidth(ImageView image, ViewGroup parent) {
+      int width = image.getWidth();
+      if (width <= 0) {
+        width = parent.getWidth() - parent.getPaddingLeft() - parent.getPaddingRight();
+      }
+      return width > 0 ? width : mScreenWidth;
+    }
+
+    /**
+     * Stops loading the cover of a row that was scrolled off screen.  The row is rebound in full
+     * if it comes back before its cover arrived.
+     */
+    public void onRowRecycled(View rowView) {
+      ViewHolder holder = (ViewHolder) rowView.getTag();
+      if (holder == null || holder.thumbnail == null) {
+        return;
+      }
+      if (!holder.thumbnail.isDone()) {
+        holder.thumbnail.cancel();
+        holder.bound = null;
+      }
+      holder.thumbnail = null;
     }
 
+    private static SnapshotMetadata getMetadata(Object item) {
+      if (item instanceof Snapshot) {
+        return ((Snapshot) item).getMetadata();
+      }
+      return (SnapshotMetadata) item;
+    }
 
     private static final long MILLIS_PER_MINUTE = 60 * 1000;
 
@@ -160,11 +309,12 @@ public class SelectSnapshotActivity extends AppCompatActivity implements Adapter
     /**
      * Helper function to convert the time difference into a string like "3 days ago"
      *
+     * @param now       -  the current time.
      * @param timestamp -  the time to convert.
      * @return localized string, never null.
      */
-    private String getAge(long timestamp) {
-      long delta = System.currentTimeMillis() - timestamp;
+    private String getAge(long now, long timestamp) {
+      long delta = now - timestamp;
       int days = (int) (delta / MILLIS_PER_DAY);
 
       delta = delta % MILLIS_PER_DAY;
@@ -177,18 +327,18 @@ public class SelectSnapshotActivity extends AppCompatActivity implements Adapter
       int seconds = (int) delta / 1000;
 
       if (days > 0) {
-        return getContext().getString(R.string.format_days_ago, days);
+        return mContext.getString(R.string.format_days_ago, days);
       }
       if (hours > 0) {
-        return getContext().getString(R.string.format_hours_ago, hours);
+        return mContext.getString(R.string.format_hours_ago, hours);
       }
       if (minutes > 0) {
-        return getContext().getString(R.string.format_minutes_ago, minutes);
+        return mContext.getString(R.string.format_minutes_ago, minutes);
       }
       if (seconds > 0) {
-        return getContext().getString(R.string.format_seconds_ago, seconds);
+        return mContext.getString(R.string.format_seconds_ago, seconds);
       }
-      return getContext().getString(R.string.moments_ago);
+      return mContext.getString(R.string.moments_ago);
     }
   }
 }
@@ -0,0 +1,73 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import android.content.Intent;
+
+import com.google.android.gms.games.AnnotatedData;
+import com.google.android.gms.games.SnapshotsClient;
+import com.google.android.gms.games.snapshot.Snapshot;
+import com.google.android.gms.games.snapshot.SnapshotContents;
+import com.google.android.gms.games.snapshot.SnapshotMetadata;
+import com.google.android.gms.games.snapshot.SnapshotMetadataBuffer;
+import com.google.android.gms.games.snapshot.SnapshotMetadataChange;
+import com.google.android.gms.tasks.Task;
+
+/**
+ * The storage operations the SnapshotCoordinator needs from the Saved Games service.
+ * <p/>
+ * The methods mirror the ones on SnapshotsClient so the production implementation,
+ * {@link SnapshotsClientBackend}, is a straight pass-through.  Having the coordinator talk to this
+ * interface rather than the client lets it be driven by an in-process fake when exercising the
+ * locking and bookkeeping without Play services or a network.
+ */
+public interface SnapshotBackend {
+
+  Task<Integer> getMaxDataSize();
+
+  Task<Integer> getMaxCoverImageSize();
+
+  Task<Intent> getSelectSnapshotIntent(String title,
+                                       boolean allowAddButton,
+                                       boolean allowDelete,
+                                       int maxSnapshots);
+
+  Task<AnnotatedData<SnapshotMetadataBuffer>> load(boolean forceReload);
+
+  Task<SnapshotsClient.DataOrConflict<Snapshot>> open(String filename, boolean createIfNotFound);
+
+  Task<SnapshotsClient.DataOrConflict<Snapshot>> open(String filename,
+                                                      boolean createIfNotFound,
+                                                      int conflictPolicy);
+
+  Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotMetadata snapshotMetadata);
+
+  Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotMetadata snapshotMetadata,
+                                                      int conflictPolicy);
+
+  Task<SnapshotMetadata> commitAndClose(Snapshot snapshot,
+                                        SnapshotMetadataChange snapshotMetadataChange);
+
+  Task<Void> discardAndClose(Snapshot snapshot);
+
+  Task<String> delete(SnapshotMetadata snapshotMetadata);
+
+  Task<SnapshotsClient.DataOrConflict<Snapshot>> resolveConflict(String conflictId,
+                                                                 Snapshot snapshot);
+
+  Task<SnapshotsClient.DataOrConflict<Snapshot>> resolveConflict(String conflictId,
+                                                                 String snapshotId,
+                                                                 SnapshotMetadataChange snapshotMetadataChange,
+                                                                 SnapshotContents snapshotContents);
+}
@@ -0,0 +1,130 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import com.google.android.gms.games.snapshot.SnapshotMetadata;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded snapshot contents, keyed by the snapshot's unique name and revision.
+ * <p/>
+ * The Snapshots API has no revision number, so the revision is taken to be the last modified
+ * timestamp together with the progress value.  An entry is only returned when both match the
+ * metadata being looked up, so a file changed by another device is never served from the cache.
+ * <p/>
+ * Entries are evicted least recently used first once their total size passes the byte budget.
+ * The size of an entry is the size of its serialized contents, which is what the caller knows
+ * cheaply; the decoded form is assumed to be proportional to it.
+ */
+public class SnapshotContentCache {
+
+  private static class Entry {
+    final long lastModified;
+    final long progressValue;
+    final Object contents;
+    final int size;
+
+    Entry(long lastModified, long progressValue, Object contents, int size) {
+      this.lastModified = lastModified;
+      this.progressValue = progressValue;
+      this.contents = contents;
+      this.size = size;
+    }
+  }
+
+  private final long maxBytes;
+
+  // access ordered, so iteration starts at the least recently used entry.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  private long hits;
+  private long misses;
+
+  public SnapshotContentCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cached contents of the snapshot if they are of the given type and were cached
+   * for the same revision as the metadata, otherwise null.
+   */
+  public synchronized <T> T get(SnapshotMetadata metadata, Class<T> type) {
+    Entry entry = entries.get(metadata.getUniqueName());
+    if (entry == null
+        || entry.lastModified != metadata.getLastModifiedTimestamp()
+        || entry.progressValue != metadata.getProgressValue()
+        || !type.isInstance(entry.contents)) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return type.cast(entry.contents);
+  }
+
+  /**
+   * Caches the decoded contents of the snapshot at the revision described by the metadata,
+   * replacing any other revision of it.
+   *
+   * @param metadata - the metadata of the snapshot as read or as committed.
+   * @param contents - the decoded contents; must not be modified afterwards.
+   * @param size     - the size of the serialized contents in bytes.
+   */
+  public synchronized void put(SnapshotMetadata metadata, Object contents, int size) {
+    if (size > maxBytes) {
+      invalidate(metadata.getUniqueName());
+      return;
+    }
+
+    Entry previous = entries.put(metadata.getUniqueName(), new Entry(
+        metadata.getLastModifiedTimestamp(), metadata.getProgressValue(), contents, size));
+    if (previous != null) {
+      bytes -= previous.size;
+    }
+    bytes += size;
+
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().getValue().size;
+      it.remove();
+    }
+  }
+
+  public synchronized void invalidate(String uniqueName) {
+    Entry previous = entries.remove(uniqueName);
+    if (previous != null) {
+      bytes -= previous.size;
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  public synchronized long getSizeBytes() {
+    return bytes;
+  }
+}
@@ -14,11 +14,11 @@
 package com.google.example.games.catt2;
 
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import androidx.annotation.NonNull;
 import android.util.Log;
 
+import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.common.api.Result;
 import com.google.android.gms.common.api.Status;
@@ -33,12 +33,28 @@ import com.google.android.gms.tasks.Continuation;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The SnapshotCoordinator is used to overcome some dangerous behavior when using Saved Game API
@@ -56,33 +72,626 @@ import java.util.concurrent.CountDownLatch;
  * is inconsistent with enforced rules (any file can be open only once before closing it, and
  * snapshot data can only be committed once per open), then an IllegalStateException is thrown.
  * <p/>
+ * Every method taking a SnapshotsClient also has a variant taking a {@link SnapshotBackend},
+ * which is what the coordinator actually talks to.  This allows the coordinator to be driven by
+ * an in-process fake backend instead of Play services.
+ * <p/>
  * To make it easier to use Snapshots correctly, you should call SnapshotCoordinator.waitForClosed()
  * to obtain a Task which will be resolved when the file is ready to be opened again.
+ * <p/>
+ * Conflicts returned by open can be resolved without user interaction by passing the result to
+ * {@link #resolveConflict(SnapshotBackend, SnapshotsClient.DataOrConflict, SnapshotMerger)}
+ * along with a function that merges the contents of the two versions.
+ * <p/>
+ * The coordinator's own continuations run on {@link #getExecutor()}, a small background pool by
+ * default, rather than on the main thread.  Callers can use the same executor for their own
+ * non-UI continuations so that reading and writing snapshot contents stays off the UI thread.
+ * <p/>
+ * Opens can also be given a {@link Priority}.  Instead of failing when the file is already open,
+ * these wait in a per-file queue, and when the file is closed it is handed to the waiting open
+ * with the highest priority.  The default executor runs queued work in priority order as well, so
+ * a load the user is waiting for is not stuck behind background saves.
+ * <p/>
+ * Backend calls that fail with a transient error, such as a network error, are retried with
+ * exponential backoff according to the {@link RetryPolicy}, and every attempt is counted in
+ * {@link #getMetrics()}.  The file stays open or closing while a call is retried.  After repeated
+ * transient failures a {@link CircuitBreaker} opens, and calls fail fast until a periodic probe
+ * finds the backend answering again.
+ * <p/>
+ * Each open holds a lease on its file.  If the file is not used for longer than the lease timeout,
+ * for example because an exception skipped the commit or discard, the coordinator discards the
+ * snapshot itself, lets the next open in, and keeps a leak report naming where the file was
+ * opened.
+ * <p/>
+ * Callers that only read a file can use {@link #openReadOnly(SnapshotBackend, String, Priority)}
+ * instead, where concurrent readers of a file share a single open.
+ * <p/>
+ * There is one coordinator per signed-in account.  {@link #switchAccount(String)} makes an account
+ * current and shuts down the coordinators of the others, cancelling their work in one go, so files
+ * of the previous account can never hold up the new one.
  */
 public class SnapshotCoordinator {
 
-  private static final SnapshotCoordinator theInstance = new SnapshotCoordinator();
-
   private static final String TAG = "SnapshotCoordinator";
 
+  // Number of threads in the default executor.  The work is mostly waiting on the backend and
+  // copying snapshot contents, so a couple of threads is plenty.
+  private static final int DEFAULT_IO_THREADS = 2;
+
+  // Byte budget of the content cache.
+  private static final long CONTENT_CACHE_BYTES = 1024 * 1024;
+
+  // How many times in a row a conflict is merged before giving up.  Each round only happens if
+  // someone else saved the same file while we were merging.
+  private static final int MAX_MERGE_ATTEMPTS = 10;
+
+  // Retry policy used unless the caller sets another one.
+  private static final RetryPolicy DEFAULT_RETRY_POLICY = new RetryPolicy(4, 250, 4000);
+
+  // Consecutive transient failures after which the backend is considered down, and the first and
+  // longest wait before probing it again.
+  private static final int BREAKER_FAILURE_THRESHOLD = 5;
+  private static final long BREAKER_PROBE_INTERVAL_MILLIS = 15 * 1000;
+  private static final long BREAKER_MAX_PROBE_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+  // How long an open file may sit untouched before it is reclaimed.  Generous, since a conflict
+  // can keep a file open while the user picks a version.
+  private static final long DEFAULT_LEASE_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+  // How many leak reports to keep.
+  private static final int MAX_LEAK_REPORTS = 16;
+
+  private static final Result CLOSED = new Result() {
+    @Override
+    public Status getStatus() {
+      return new Status(CommonStatusCodes.SUCCESS);
+    }
+  };
+
+  /**
+   * How urgent an operation is, highest first.  Work of the same priority runs in the order it was
+   * submitted.
+   */
+  public enum Priority {
+    /** The user is waiting for a snapshot to be loaded. */
+    INTERACTIVE_LOAD,
+    /** The user asked for a save. */
+    INTERACTIVE_SAVE,
+    /** Saves and syncs nobody is waiting for, such as autosaves and journal flushes. */
+    BACKGROUND_SYNC
+  }
+
+  /**
+   * The exception an open or delete fails with when another caller has the file.  Other misuse of
+   * the file, such as closing it twice, fails with a plain IllegalStateException.
+   */
+  public static class FileInUseException extends IllegalStateException {
+    public FileInUseException(String message) {
+      super(message);
+    }
+  }
+
+  // Work submitted to the executor without a priority is treated as an interactive save, so that
+  // it is never starved by background syncs.
+  private static final Priority DEFAULT_PRIORITY = Priority.INTERACTIVE_SAVE;
+
+  // An open waiting for its file to be closed.
+  private static class Admission implements Comparable<Admission> {
+    final Priority priority;
+    final long sequence;
+    final Throwable callSite;
+    final TaskCompletionSource<Void> admitted = new TaskCompletionSource<>();
+
+    Admission(Priority priority, long sequence, Throwable callSite) {
+      this.priority = priority;
+      this.sequence = sequence;
+      this.callSite = callSite;
+    }
+
+    @Override
+    public int compareTo(@NonNull Admission other) {
+      if (priority != other.priority) {
+        return priority.compareTo(other.priority);
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+
+  /**
+   * The claim of one open on its file.  The lease is renewed whenever the coordinator does
+   * something with the file, and if it sits idle for longer than the lease timeout, the snapshot
+   * is discarded on the owner's behalf.
+   */
+  private static class Lease {
+    final String filename;
+    // where the file was opened, for leak reports.
+    final Throwable callSite;
+    final long acquiredAtMillis;
+    volatile long lastActivityMillis;
+    // known once the open has succeeded.
+    volatile SnapshotBackend backend;
+    volatile Snapshot snapshot;
+    // the other version, if the open reported a conflict; resolving with it also takes over.
+    volatile Snapshot conflicting;
+
+    Lease(String filename, Throwable callSite, long nowMillis) {
+      this.filename = filename;
+      this.callSite = callSite;
+      this.acquiredAtMillis = nowMillis;
+      this.lastActivityMillis = nowMillis;
+    }
+  }
+
+  /**
+   * The contents of a snapshot as seen by a read-only open.  The snapshot itself has already been
+   * discarded, so this can be kept and shared freely.
+   */
+  public static class ReadOnlySnapshot {
+    private final SnapshotMetadata metadata;
+    private final byte[] contents;
+    private final boolean conflict;
+
+    ReadOnlySnapshot(SnapshotMetadata metadata, byte[] contents, boolean conflict) {
+      this.metadata = metadata;
+      this.contents = contents;
+      this.conflict = conflict;
+    }
+
+    /**
+     * Returns a frozen copy of the metadata of the version that was read.
+     */
+    public SnapshotMetadata getMetadata() {
+      return metadata;
+    }
+
+    /**
+     * Returns a copy of the contents.
+     */
+    public byte[] getContents() {
+      return Arrays.copyOf(contents, contents.length);
+    }
+
+    public int getContentsLength() {
+      return contents.length;
+    }
+
+    /**
+     * Returns true if the file was in conflict.  A read-only open leaves conflicts alone; the
+     * contents are those of the version being opened, and a writer has to resolve the conflict.
+     */
+    public boolean hasConflict() {
+      return conflict;
+    }
+  }
+
+  // A unit of work on the default executor.
+  private static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+    private static final AtomicLong nextSequence = new AtomicLong();
+
+    final Runnable runnable;
+    final Priority priority;
+    final long sequence = nextSequence.getAndIncrement();
+
+    PrioritizedRunnable(Runnable runnable, Priority priority) {
+      this.runnable = runnable;
+      this.priority = priority;
+    }
+
+    @Override
+    public void run() {
+      runnable.run();
+    }
+
+    @Override
+    public int compareTo(@NonNull PrioritizedRunnable other) {
+      if (priority != other.priority) {
+        return priority.compareTo(other.priority);
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+
+  // The default executor: a thread pool that takes work from a priority queue.
+  private static class PriorityExecutor implements Executor {
+    private final ThreadPoolExecutor pool;
+
+    PriorityExecutor(ThreadPoolExecutor pool) {
+      this.pool = pool;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable runnable) {
+      execute(runnable, DEFAULT_PRIORITY);
+    }
+
+    void execute(Runnable runnable, Priority priority) {
+      pool.execute(new PrioritizedRunnable(runnable, priority));
+    }
+  }
+
+  // Shared by the coordinators of all accounts.
+  private static final Executor DEFAULT_EXECUTOR = createDefaultExecutor();
+
+  // Only waits out retry delays, probe intervals and lease timeouts; the work itself runs on the
+  // executor.
+  private static final ScheduledExecutorService scheduler =
+      new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+          Thread thread = new Thread(runnable, TAG + "-timer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // Key of the coordinator used while nobody is signed in.
+  private static final String NO_ACCOUNT = "";
+
+  // The live coordinator of each account, and the one of the current account.
+  private static final Map<String, SnapshotCoordinator> coordinators = new HashMap<>();
+  private static SnapshotCoordinator current;
+
+  /**
+   * Returns the coordinator of the current account.  This is important since
+   * we need to coordinate all operations on an account's files through the same instance in
+   * order to detect usages that would cause data corruption.
+   *
+   * @return the coordinator of the account last passed to {@link #switchAccount(String)}.
+   */
+  public static synchronized SnapshotCoordinator getInstance() {
+    if (current == null) {
+      current = forAccount(null);
+    }
+    return current;
+  }
+
   /**
-   * Singleton for coordinating the Snapshots API.  This is important since
-   * we need to coordinate all operations through the same instance in order to
-   * detect usages that would cause data corruption.
+   * Returns the coordinator of the given account, creating it if needed.  Each account has its own
+   * open files, content cache, metrics and circuit breaker, so one account's files can never
+   * block another's.
    *
-   * @return the singleton
+   * @param accountId - the account, or null for the coordinator used while signed out.
    */
-  public static SnapshotCoordinator getInstance() {
-    return theInstance;
+  public static synchronized SnapshotCoordinator forAccount(String accountId) {
+    String key = accountId == null ? NO_ACCOUNT : accountId;
+    SnapshotCoordinator coordinator = coordinators.get(key);
+    if (coordinator == null) {
+      coordinator = new SnapshotCoordinator(key);
+      coordinators.put(key, coordinator);
+    }
+    return coordinator;
+  }
+
+  /**
+   * Makes the given account the current one, and shuts down the coordinators of every other
+   * account, cancelling their work.  Call this whenever the signed-in account changes.
+   *
+   * @param accountId - the new account, or null when signing out.
+   * @return the coordinator of the new account.
+   */
+  public static SnapshotCoordinator switchAccount(String accountId) {
+    List<SnapshotCoordinator> stale = new ArrayList<>();
+    SnapshotCoordinator next;
+    synchronized (SnapshotCoordinator.class) {
+      next = forAccount(accountId);
+      for (SnapshotCoordinator coordinator : coordinators.values()) {
+        if (coordinator != next) {
+          stale.add(coordinator);
+        }
+      }
+      coordinators.values().removeAll(stale);
+      current = next;
+    }
+    for (SnapshotCoordinator coordinator : stale) {
+      coordinator.shutdown();
+    }
+    return next;
   }
 
-  // Sets to keep track of the files that are opened or in the process of closing.
-  private final Map<String, CountDownLatch> opened;
+  private final String accountKey;
+
+  private volatile boolean shutDown;
+
+  // Sets to keep track of the files that are opened or in the process of closing.  Each open file
+  // has a completion source which is resolved when the file is closed again.
+  private final Map<String, TaskCompletionSource<Result>> opened;
   private final Set<String> closing;
 
-  private SnapshotCoordinator() {
+  // How many callers of waitForClosed are waiting for each open file, for the diagnostics.
+  private final Map<String, Integer> closeWaiters;
+
+  // Opens waiting for a file that is open or closing, best first.
+  private final Map<String, PriorityQueue<Admission>> admissions;
+  private long admissionSequence;
+
+  // The lease of each open file, and the last lease of each file that had to be reclaimed.  A
+  // reclaimed lease is dropped once its owner's late close has been turned away; owners that never
+  // close at all are bounded by keeping only the most recent few.
+  private final Map<String, Lease> leases;
+  private final Map<String, Lease> reclaimed;
+  private final LinkedList<String> leakReports = new LinkedList<>();
+
+  private volatile long leaseTimeoutMillis = DEFAULT_LEASE_TIMEOUT_MILLIS;
+
+  // Read-only opens in progress; readers of the same file share one of these.
+  private final Map<String, Task<ReadOnlySnapshot>> sharedReads;
+
+  private volatile Executor executor;
+
+  private final SnapshotContentCache contentCache = new SnapshotContentCache(CONTENT_CACHE_BYTES);
+
+  private final SnapshotMetrics metrics = new SnapshotMetrics();
+
+  private volatile RetryPolicy retryPolicy = DEFAULT_RETRY_POLICY;
+
+  // The backend's cover image limit; it does not change while the account is signed in.
+  private volatile Task<Integer> maxCoverImageSize;
+
+  private final CircuitBreaker circuitBreaker = new CircuitBreaker(BREAKER_FAILURE_THRESHOLD,
+      BREAKER_PROBE_INTERVAL_MILLIS, BREAKER_MAX_PROBE_INTERVAL_MILLIS);
+
+  private SnapshotCoordinator(String accountKey) {
+    this.accountKey = accountKey;
     opened = new HashMap<>();
     closing = new HashSet<>();
+    closeWaiters = new HashMap<>();
+    admissions = new HashMap<>();
+    leases = new HashMap<>();
+    reclaimed = new LinkedHashMap<String, Lease>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Lease> eldest) {
+        return size() > MAX_LEAK_REPORTS;
+      }
+    };
+    sharedReads = new HashMap<>();
+    executor = DEFAULT_EXECUTOR;
+  }
+
+  /**
+   * Cancels everything this coordinator is doing, all at once, and makes it refuse new work.
+   * Opens waiting in line fail, waiters on {@link #waitForClosed(String)} are released, snapshots
+   * still open are discarded without waiting for the backend, and the content cache is emptied.
+   * Commits already under way are left to finish, since they also release their snapshot.
+   */
+  public void shutdown() {
+    List<Admission> waiting = new ArrayList<>();
+    List<TaskCompletionSource<Result>> waiters;
+    List<Lease> open;
+    synchronized (this) {
+      if (shutDown) {
+        return;
+      }
+      shutDown = true;
+      for (PriorityQueue<Admission> queue : admissions.values()) {
+        waiting.addAll(queue);
+      }
+      admissions.clear();
+      waiters = new ArrayList<>(opened.values());
+      opened.clear();
+      closing.clear();
+      closeWaiters.clear();
+      open = new ArrayList<>(leases.values());
+      leases.clear();
+      reclaimed.clear();
+      sharedReads.clear();
+    }
+    contentCache.clear();
+
+    Log.i(TAG, "Shutting down coordinator: " + waiting.size() + " queued and " + open.size()
+        + " open files cancelled");
+    metrics.add("shutdown.cancelledOpens", waiting.size());
+    metrics.add("shutdown.discardedOpens", open.size());
+    for (Admission admission : waiting) {
+      admission.admitted.trySetException(shutDownException());
+    }
+    for (TaskCompletionSource<Result> waiter : waiters) {
+      waiter.trySetResult(CLOSED);
+    }
+    for (Lease lease : open) {
+      if (lease.snapshot != null) {
+        lease.backend.discardAndClose(lease.snapshot);
+      }
+    }
+  }
+
+  public boolean isShutDown() {
+    return shutDown;
+  }
+
+  private IllegalStateException shutDownException() {
+    return new IllegalStateException("The snapshot coordinator"
+        + (accountKey.isEmpty() ? "" : " of account " + accountKey) + " was shut down");
+  }
+
+  private static Executor createDefaultExecutor() {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_IO_THREADS, DEFAULT_IO_THREADS,
+        30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG + "-io-" + count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+          }
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return new PriorityExecutor(pool);
+  }
+
+  /**
+   * Returns the executor used for the coordinator's continuations.  This is also the executor
+   * callers should use for non-UI work on snapshots, such as reading or serializing the contents.
+   *
+   * @return the executor, never null.
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Returns an executor that runs work at the given priority.  With the default executor, queued
+   * work of a higher priority runs first; with an executor set by the caller, the priority is
+   * ignored.
+   *
+   * @param priority - the priority of the work.
+   * @return the executor, never null.
+   */
+  public Executor getExecutor(final Priority priority) {
+    return new Executor() {
+      @Override
+      public void execute(@NonNull Runnable runnable) {
+        Executor current = executor;
+        if (current instanceof PriorityExecutor) {
+          ((PriorityExecutor) current).execute(runnable, priority);
+        } else {
+          current.execute(runnable);
+        }
+      }
+    };
+  }
+
+  /**
+   * Replaces the executor used for the coordinator's continuations.
+   *
+   * @param executor - the executor to use; must not run tasks on the main thread.
+   */
+  public void setExecutor(@NonNull Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the cache of decoded snapshot contents.  Callers fill it when they read or commit a
+   * snapshot, and check it before reading the contents of a snapshot they opened.
+   *
+   * @return the cache, never null.
+   */
+  public SnapshotContentCache getContentCache() {
+    return contentCache;
+  }
+
+  /**
+   * Returns the counters describing the coordinator's activity, such as attempts and retries per
+   * operation.
+   *
+   * @return the metrics, never null.
+   */
+  public SnapshotMetrics getMetrics() {
+    return metrics;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * Replaces the policy deciding which failed backend calls are retried.  Use
+   * {@link RetryPolicy#NO_RETRIES} to fail on the first error.
+   *
+   * @param retryPolicy - the policy to use.
+   */
+  public void setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+  }
+
+  /**
+   * Returns the breaker that stops calls to the backend while it appears to be down.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * Returns false while the backend appears to be down.  Calls made now fail fast with a
+   * {@link CircuitBreaker.OpenException}, so callers may prefer to keep data locally instead.
+   */
+  public boolean isBackendAvailable() {
+    return circuitBreaker.allowRequest();
+  }
+
+  public long getLeaseTimeoutMillis() {
+    return leaseTimeoutMillis;
+  }
+
+  /**
+   * Sets how long an open file may go without being used before the coordinator discards it and
+   * lets the next open in.  Applies to leases taken from now on.
+   *
+   * @param leaseTimeoutMillis - the idle time, in milliseconds.
+   */
+  public void setLeaseTimeoutMillis(long leaseTimeoutMillis) {
+    this.leaseTimeoutMillis = leaseTimeoutMillis;
+  }
+
+  /**
+   * Tells the coordinator that the open file is still in use.  Callers that keep a snapshot open
+   * for longer than the lease timeout must call this now and then or the snapshot is reclaimed.
+   * Waiting on the user is better done with the file closed, as the conflict picker does.
+   *
+   * @param filename - the open file.
+   */
+  public void renewLease(String filename) {
+    Lease lease;
+    synchronized (this) {
+      lease = leases.get(filename);
+    }
+    if (lease != null) {
+      lease.lastActivityMillis = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Returns descriptions of the most recently reclaimed opens, newest last, each with the stack
+   * trace of where the file was opened.
+   */
+  public synchronized List<String> getLeakReports() {
+    return new ArrayList<>(leakReports);
+  }
+
+  /**
+   * Returns a consistent view of every file that is not closed, with how long it has been in its
+   * state and who is waiting for it, along with the coordinator's counters.  Export it with
+   * {@link SnapshotDiagnostics#toJson()} when saves appear to stall.
+   */
+  public SnapshotDiagnostics getDiagnostics() {
+    long now = System.currentTimeMillis();
+    List<SnapshotDiagnostics.FileInfo> files = new ArrayList<>();
+    int leaks;
+    synchronized (this) {
+      for (String filename : opened.keySet()) {
+        Lease lease = leases.get(filename);
+        SnapshotDiagnostics.FileState state;
+        if (closing.contains(filename)) {
+          state = SnapshotDiagnostics.FileState.CLOSING;
+        } else if (lease == null || lease.snapshot == null) {
+          state = SnapshotDiagnostics.FileState.OPENING;
+        } else {
+          state = SnapshotDiagnostics.FileState.OPEN;
+        }
+        Integer waiters = closeWaiters.get(filename);
+        PriorityQueue<Admission> queue = admissions.get(filename);
+        files.add(new SnapshotDiagnostics.FileInfo(filename, state,
+            lease == null ? -1 : now - lease.acquiredAtMillis,
+            lease == null ? -1 : now - lease.lastActivityMillis,
+            waiters == null ? 0 : waiters,
+            queue == null ? 0 : queue.size(),
+            sharedReads.containsKey(filename),
+            lease == null ? null : Log.getStackTraceString(lease.callSite)));
+      }
+      // deletes mark a file closing without opening it.
+      for (String filename : closing) {
+        if (!opened.containsKey(filename)) {
+          PriorityQueue<Admission> queue = admissions.get(filename);
+          files.add(new SnapshotDiagnostics.FileInfo(filename,
+              SnapshotDiagnostics.FileState.CLOSING, -1, -1, 0,
+              queue == null ? 0 : queue.size(), false, null));
+        }
+      }
+      leaks = leakReports.size();
+    }
+    return new SnapshotDiagnostics(accountKey, now, shutDown, files, leaseTimeoutMillis, leaks,
+        circuitBreaker, contentCache, metrics);
   }
 
   /**
@@ -125,11 +734,31 @@ public class SnapshotCoordinator {
    *
    * @param filename - the filename of interest.
    */
-  private synchronized void setClosed(String filename) {
-    closing.remove(filename);
-    CountDownLatch l = opened.remove(filename);
-    if (l != null) {
-      l.countDown();
+  private void setClosed(String filename) {
+    TaskCompletionSource<Result> closed;
+    Admission next = null;
+    synchronized (this) {
+      closing.remove(filename);
+      closed = opened.remove(filename);
+      closeWaiters.remove(filename);
+      leases.remove(filename);
+
+      // hand the file straight to the best waiting open, so nobody can sneak in between.
+      PriorityQueue<Admission> queue = admissions.get(filename);
+      if (queue != null) {
+        next = queue.poll();
+        if (queue.isEmpty()) {
+          admissions.remove(filename);
+        }
+        setIsOpening(filename, next.callSite);
+      }
+    }
+    // resolve outside the lock; waiters may immediately try to open the file again.
+    if (closed != null) {
+      closed.setResult(CLOSED);
+    }
+    if (next != null) {
+      next.admitted.setResult(null);
     }
   }
 
@@ -140,8 +769,118 @@ public class SnapshotCoordinator {
    *
    * @param filename - the filename of interest.
    */
-  private synchronized void setIsOpening(String filename) {
-    opened.put(filename, new CountDownLatch(1));
+  private synchronized void setIsOpening(String filename, Throwable callSite) {
+    opened.put(filename, new TaskCompletionSource<Result>());
+    Lease lease = new Lease(filename, callSite, System.currentTimeMillis());
+    leases.put(filename, lease);
+    scheduleLeaseCheck(lease, leaseTimeoutMillis);
+  }
+
+  // Records the backend and snapshot the lease covers, once the open has produced them.
+  private void setLeaseSnapshot(String filename, SnapshotBackend backend,
+                                SnapshotsClient.DataOrConflict<Snapshot> result) {
+    Lease lease;
+    synchronized (this) {
+      lease = leases.get(filename);
+    }
+    if (lease != null) {
+      lease.backend = backend;
+      if (result.isConflict()) {
+        lease.snapshot = result.getConflict().getSnapshot();
+        lease.conflicting = result.getConflict().getConflictingSnapshot();
+      } else {
+        lease.snapshot = result.getData();
+        lease.conflicting = null;
+      }
+      lease.lastActivityMillis = System.currentTimeMillis();
+    }
+  }
+
+  private void scheduleLeaseCheck(final Lease lease, long delayMillis) {
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        checkLease(lease);
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Reclaims the file if the lease is still current and has been idle for too long, otherwise
+   * checks again when it could next expire.
+   */
+  private void checkLease(Lease lease) {
+    long now = System.currentTimeMillis();
+    long timeout = leaseTimeoutMillis;
+    Snapshot snapshot = lease.snapshot;
+    long idle = now - lease.lastActivityMillis;
+
+    synchronized (this) {
+      if (leases.get(lease.filename) != lease || closing.contains(lease.filename)) {
+        // closed, or being closed, by its owner.
+        return;
+      }
+      if (idle < timeout || snapshot == null) {
+        // still in use, or the open itself has not finished; that ends one way or another.
+        scheduleLeaseCheck(lease, Math.max(timeout - idle, 1000));
+        return;
+      }
+      // mark it closing now, so the owner can't start closing it at the same time.
+      setIsClosing(lease.filename);
+      // re-insert, so a file reclaimed again counts as the newest.
+      reclaimed.remove(lease.filename);
+      reclaimed.put(lease.filename, lease);
+
+      leakReports.add(lease.filename + " opened " + (now - lease.acquiredAtMillis)
+          + "ms ago was idle for " + idle + "ms and was reclaimed.  Opened at:\n"
+          + Log.getStackTraceString(lease.callSite));
+      while (leakReports.size() > MAX_LEAK_REPORTS) {
+        leakReports.removeFirst();
+      }
+    }
+
+    Log.w(TAG, "Reclaiming leaked open of " + lease.filename + ", idle for " + idle + "ms",
+        lease.callSite);
+    metrics.increment("lease.expired");
+    final String filename = lease.filename;
+    lease.backend.discardAndClose(snapshot)
+        .addOnCompleteListener(executor, new OnCompleteListener<Void>() {
+          @Override
+          public void onComplete(@NonNull Task<Void> task) {
+            setClosed(filename);
+          }
+        });
+  }
+
+  /**
+   * Returns a task that completes once the named file has been marked as opening for the caller.
+   * If the file is open or closing, the caller waits in line behind any waiting opens of the
+   * same or a higher priority.
+   *
+   * @param filename - the filename of interest.
+   * @param priority - the priority of the open.
+   */
+  private Task<Void> admit(String filename, Priority priority) {
+    Throwable callSite = new Throwable("open of " + filename);
+    Admission admission;
+    synchronized (this) {
+      if (shutDown) {
+        return Tasks.forException(shutDownException());
+      }
+      if (!opened.containsKey(filename) && !closing.contains(filename)) {
+        setIsOpening(filename, callSite);
+        return Tasks.forResult(null);
+      }
+      admission = new Admission(priority, admissionSequence++, callSite);
+      PriorityQueue<Admission> queue = admissions.get(filename);
+      if (queue == null) {
+        queue = new PriorityQueue<>();
+        admissions.put(filename, queue);
+      }
+      queue.add(admission);
+    }
+    Log.d(TAG, "Waiting to open " + filename + " at " + priority);
+    return admission.admitted.getTask();
   }
 
   /**
@@ -151,43 +890,54 @@ public class SnapshotCoordinator {
    * @param filename - the file name in question.
    */
   public Task<Result> waitForClosed(String filename) {
-    final TaskCompletionSource<Result> taskCompletionSource = new TaskCompletionSource<>();
-
-    final CountDownLatch latch;
+    final TaskCompletionSource<Result> closed;
     synchronized (this) {
-      latch = opened.get(filename);
+      closed = opened.get(filename);
+      if (closed != null) {
+        Integer count = closeWaiters.get(filename);
+        closeWaiters.put(filename, count == null ? 1 : count + 1);
+      }
     }
 
-    if (latch == null) {
+    if (closed == null) {
+      final TaskCompletionSource<Result> taskCompletionSource = new TaskCompletionSource<>();
       taskCompletionSource.setResult(null);
 
       return taskCompletionSource.getTask();
     }
 
-    new AsyncTask<Void, Void, Void>() {
-      @Override
-      protected Void doInBackground(Void... voids) {
-        Result result = new CountDownTask(latch).await();
-        taskCompletionSource.setResult(result);
-
-        return null;
-      }
-    }.execute();
-
-    return taskCompletionSource.getTask();
+    return closed.getTask();
   }
 
     /*
         Many operations on the Snapshots API do not affect specific files.  These methods are
-        passed directly through to the client API.
+        passed directly through to the backend.
      */
 
   public Task<Integer> getMaxDataSize(SnapshotsClient snapshotsClient) {
-    return snapshotsClient.getMaxDataSize();
+    return getMaxDataSize(new SnapshotsClientBackend(snapshotsClient));
+  }
+
+  public Task<Integer> getMaxDataSize(SnapshotBackend backend) {
+    return backend.getMaxDataSize();
   }
 
   public Task<Integer> getMaxCoverImageSize(SnapshotsClient snapshotsClient) {
-    return snapshotsClient.getMaxCoverImageSize();
+    return getMaxCoverImageSize(new SnapshotsClientBackend(snapshotsClient));
+  }
+
+  /**
+   * Returns the largest cover image the backend accepts, in bytes.  The first successful answer is
+   * kept, so later calls do not go to the backend.
+   */
+  public Task<Integer> getMaxCoverImageSize(SnapshotBackend backend) {
+    Task<Integer> cached = maxCoverImageSize;
+    if (cached != null && (!cached.isComplete() || cached.isSuccessful())) {
+      return cached;
+    }
+    Task<Integer> task = backend.getMaxCoverImageSize();
+    maxCoverImageSize = task;
+    return task;
   }
 
   public Task<Intent> getSelectSnapshotIntent(SnapshotsClient snapshotsClient,
@@ -195,13 +945,32 @@ public class SnapshotCoordinator {
                                               boolean allowAddButton,
                                               boolean allowDelete,
                                               int maxSnapshots) {
-    return snapshotsClient.getSelectSnapshotIntent(title,
+    return getSelectSnapshotIntent(new SnapshotsClientBackend(snapshotsClient), title,
+        allowAddButton, allowDelete, maxSnapshots);
+  }
+
+  public Task<Intent> getSelectSnapshotIntent(SnapshotBackend backend,
+                                              String title,
+                                              boolean allowAddButton,
+                                              boolean allowDelete,
+                                              int maxSnapshots) {
+    return backend.getSelectSnapshotIntent(title,
         allowAddButton, allowDelete, maxSnapshots);
   }
 
   public Task<AnnotatedData<SnapshotMetadataBuffer>> load(SnapshotsClient snapshotsClient,
                                                           boolean forceReload) {
-    return snapshotsClient.load(forceReload);
+    return load(new SnapshotsClientBackend(snapshotsClient), forceReload);
+  }
+
+  public Task<AnnotatedData<SnapshotMetadataBuffer>> load(final SnapshotBackend backend,
+                                                          final boolean forceReload) {
+    return withRetries("load", backend, null, executor, new Attempt<AnnotatedData<SnapshotMetadataBuffer>>() {
+      @Override
+      public Task<AnnotatedData<SnapshotMetadataBuffer>> start() {
+        return backend.load(forceReload);
+      }
+    });
   }
 
   public SnapshotMetadata getSnapshotFromBundle(Bundle bundle) {
@@ -217,15 +986,357 @@ public class SnapshotCoordinator {
     throw new IllegalStateException("resolving conflicts with ids is not supported.");
   }
 
-  public Task<Void> discardAndClose(final SnapshotsClient snapshotsClient, final Snapshot snapshot) {
+  /**
+   * Merges the contents of two conflicting versions of a snapshot.
+   */
+  public interface SnapshotMerger {
+    /**
+     * Returns the contents to resolve the conflict with.  Called on the coordinator's executor.
+     *
+     * @param contents            - the contents of the snapshot being opened.
+     * @param conflictingContents - the contents of the version it conflicts with.
+     */
+    byte[] merge(byte[] contents, byte[] conflictingContents);
+  }
+
+  public Task<Snapshot> resolveConflict(SnapshotsClient snapshotsClient,
+                                        SnapshotsClient.DataOrConflict<Snapshot> result,
+                                        SnapshotMerger merger) {
+    return resolveConflict(new SnapshotsClientBackend(snapshotsClient), result, merger);
+  }
+
+  /**
+   * Resolves the conflict in the result of an open by merging the two versions in-process.  If
+   * resolving reports another conflict, that one is merged as well, up to a fixed number of
+   * attempts.  If the result is not a conflict, its snapshot is returned as-is.
+   * <p/>
+   * On success the returned snapshot is open, and must be committed or discarded as usual.  On
+   * failure the file is closed.
+   *
+   * @param result - the result of one of the open methods.
+   * @param merger - merges the contents of the conflicting versions.
+   */
+  public Task<Snapshot> resolveConflict(final SnapshotBackend backend,
+                                        final SnapshotsClient.DataOrConflict<Snapshot> result,
+                                        final SnapshotMerger merger) {
+    if (!result.isConflict()) {
+      return Tasks.forResult(result.getData());
+    }
+    // Callers are often on the main thread, and reading and merging both versions is slow; every
+    // round runs on the executor, this first one included.
+    return Tasks.forResult((Void) null).continueWithTask(executor,
+        new Continuation<Void, Task<Snapshot>>() {
+          @Override
+          public Task<Snapshot> then(@NonNull Task<Void> task) throws Exception {
+            return mergeConflict(backend, result, merger, MAX_MERGE_ATTEMPTS);
+          }
+        });
+  }
+
+  // Runs on the executor.
+
+  private Task<Snapshot> mergeConflict(final SnapshotBackend backend,
+                                       SnapshotsClient.DataOrConflict<Snapshot> result,
+                                       final SnapshotMerger merger,
+                                       final int attemptsLeft) {
+    if (!result.isConflict()) {
+      return Tasks.forResult(result.getData());
+    }
 
+    SnapshotsClient.SnapshotConflict conflict = result.getConflict();
+    final Snapshot snapshot = conflict.getSnapshot();
     final String filename = snapshot.getMetadata().getUniqueName();
 
-    return setIsClosingTask(filename).continueWithTask(new Continuation<Void, Task<Void>>() {
+    // When giving up, only the snapshot being opened is discarded.  The conflicting version is
+    // the other writer's copy, handed out for reading; it was never opened here, so it holds no
+    // open of the file, and discarding it too would close the file a second time.
+
+    if (attemptsLeft <= 0) {
+      Log.w(TAG, "Giving up merging conflicts for " + filename);
+      return discardAndCloseOpen(backend, snapshot).continueWithTask(executor,
+          new Continuation<Void, Task<Snapshot>>() {
+            @Override
+            public Task<Snapshot> then(@NonNull Task<Void> task) throws Exception {
+              throw new IllegalStateException(filename + " kept conflicting after "
+                  + MAX_MERGE_ATTEMPTS + " merges");
+            }
+          });
+    }
+
+    byte[] merged;
+    try {
+      merged = merger.merge(snapshot.getSnapshotContents().readFully(),
+          conflict.getConflictingSnapshot().getSnapshotContents().readFully());
+    } catch (Exception e) {
+      Log.e(TAG, "Could not merge conflict for " + filename, e);
+      return discardAndCloseOpen(backend, snapshot).continueWithTask(executor,
+          new Continuation<Void, Task<Snapshot>>() {
+            @Override
+            public Task<Snapshot> then(@NonNull Task<Void> task) throws Exception {
+              throw new IllegalStateException("Could not merge conflict for " + filename);
+            }
+          });
+    }
+
+    SnapshotContents contents = conflict.getResolutionSnapshotContents();
+    contents.writeBytes(merged);
+    SnapshotMetadataChange change = new SnapshotMetadataChange.Builder()
+        .fromMetadata(snapshot.getMetadata())
+        .build();
+
+    Log.d(TAG, "Merged conflict for " + filename + ", resolving");
+    // The file stays open while resolving; the resolved snapshot takes over the open.
+    return backend.resolveConflict(conflict.getConflictId(), snapshot.getMetadata().getSnapshotId(),
+        change, contents)
+        .continueWithTask(executor, new Continuation<SnapshotsClient.DataOrConflict<Snapshot>, Task<Snapshot>>() {
+          @Override
+          public Task<Snapshot> then(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) throws Exception {
+            if (!task.isSuccessful()) {
+              Log.e(TAG, "Resolving conflict failed for " + filename, task.getException());
+              setClosed(filename);
+              throw task.getException();
+            }
+            SnapshotsClient.DataOrConflict<Snapshot> resolved = task.getResult();
+            setLeaseSnapshot(filename, backend, resolved);
+            return mergeConflict(backend, resolved, merger, attemptsLeft - 1);
+          }
+        });
+  }
+
+  // One try at a backend call.
+  private interface Attempt<T> {
+    Task<T> start();
+  }
+
+  /**
+   * Runs the attempt, and runs it again after a backoff delay each time it fails with a transient
+   * error, as allowed by the retry policy.  The file keeps its open or closing state throughout,
+   * so nothing else can get at it between attempts.
+   *
+   * @param operation - the operation name used for the metrics.
+   * @param filename  - the file being worked on, for logging; may be null.
+   */
+  private <T> Task<T> withRetries(String operation, SnapshotBackend backend, String filename,
+                                  Executor executor, Attempt<T> attempt) {
+    TaskCompletionSource<T> source = new TaskCompletionSource<>();
+    runAttempt(operation, backend, filename, executor, attempt, 1, source);
+    return source.getTask();
+  }
+
+  private <T> void runAttempt(final String operation, final SnapshotBackend backend,
+                              final String filename, final Executor executor,
+                              final Attempt<T> attempt, final int attemptNumber,
+                              final TaskCompletionSource<T> source) {
+    // A first commit still goes through, since it is also what releases the snapshot.
+    boolean mustRun = attemptNumber == 1 && attempt instanceof CommitAttempt;
+    if (!mustRun && shutDown) {
+      source.setException(shutDownException());
+      return;
+    }
+    if (!mustRun && !circuitBreaker.allowRequest()) {
+      // the backend is down; don't add to its load, and don't make the caller wait.
+      metrics.increment(operation + ".rejectedByBreaker");
+      source.setException(new CircuitBreaker.OpenException(
+          "Saved Games backend unavailable, not trying to " + operation + " " + filename));
+      return;
+    }
+
+    metrics.increment(operation + ".attempts");
+    Task<T> started;
+    try {
+      started = attempt.start();
+    } catch (RuntimeException e) {
+      started = Tasks.forException(e);
+    }
+
+    started.addOnCompleteListener(executor, new OnCompleteListener<T>() {
+      @Override
+      public void onComplete(@NonNull Task<T> task) {
+        if (task.isSuccessful()) {
+          circuitBreaker.onSuccess();
+          if (shutDown && task.getResult() instanceof SnapshotsClient.DataOrConflict) {
+            // opened after the shutdown; nobody may use this snapshot, so give it back.
+            SnapshotsClient.DataOrConflict<?> result = (SnapshotsClient.DataOrConflict<?>) task.getResult();
+            backend.discardAndClose(result.isConflict()
+                ? result.getConflict().getSnapshot() : (Snapshot) result.getData());
+            source.setException(shutDownException());
+            return;
+          }
+          source.setResult(task.getResult());
+          return;
+        }
+
+        Exception e = task.getException();
+        RetryPolicy policy = retryPolicy;
+        if (!policy.isTransient(e)) {
+          metrics.increment(operation + ".permanentFailures");
+          source.setException(e);
+          return;
+        }
+        metrics.increment(operation + ".transientFailures");
+        if (circuitBreaker.onFailure(System.currentTimeMillis())) {
+          Log.w(TAG, "Backend looks unavailable, failing fast until a probe succeeds");
+          metrics.increment("breaker.opened");
+          scheduleProbe(backend);
+        }
+        if (attemptNumber >= policy.getMaxAttempts() || !circuitBreaker.allowRequest()) {
+          Log.w(TAG, operation + " " + filename + " failed after " + attemptNumber + " attempts");
+          metrics.increment(operation + ".retriesExhausted");
+          source.setException(e);
+          return;
+        }
+
+        long delay = policy.getDelayMillis(attemptNumber);
+        Log.w(TAG, operation + " " + filename + " failed, retrying in " + delay + "ms", e);
+        metrics.increment(operation + ".retries");
+        scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                runAttempt(operation, backend, filename, executor, attempt, attemptNumber + 1,
+                    source);
+              }
+            });
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+      }
+    });
+  }
+
+  /**
+   * Sends a probe to the backend once it is due, to find out whether the breaker can close again.
+   * A probe that gets any answer from the backend, even an error, closes the breaker; only a
+   * transient failure keeps it open.
+   */
+  private void scheduleProbe(final SnapshotBackend backend) {
+    long delay = circuitBreaker.getMillisUntilProbe(System.currentTimeMillis());
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (shutDown) {
+          return;
+        }
+        if (!circuitBreaker.tryStartProbe(System.currentTimeMillis())) {
+          if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+            scheduleProbe(backend);
+          }
+          return;
+        }
+
+        metrics.increment("breaker.probes");
+        Task<AnnotatedData<SnapshotMetadataBuffer>> probe;
+        try {
+          probe = backend.load(true);
+        } catch (RuntimeException e) {
+          probe = Tasks.forException(e);
+        }
+        probe.addOnCompleteListener(executor, new OnCompleteListener<AnnotatedData<SnapshotMetadataBuffer>>() {
+          @Override
+          public void onComplete(@NonNull Task<AnnotatedData<SnapshotMetadataBuffer>> task) {
+            if (task.isSuccessful()) {
+              task.getResult().get().release();
+            } else if (retryPolicy.isTransient(task.getException())) {
+              Log.d(TAG, "Probe failed, backend still unavailable");
+              circuitBreaker.onFailure(System.currentTimeMillis());
+              scheduleProbe(backend);
+              return;
+            }
+            Log.i(TAG, "Probe answered, backend available again");
+            metrics.increment("breaker.closed");
+            circuitBreaker.onSuccess();
+          }
+        });
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Commits a snapshot.  A failed commit takes the snapshot down with it, so a retry opens the
+   * file again and commits the same contents and metadata change to the fresh snapshot.  If the
+   * file comes back in conflict, someone else has written it since and the retry gives up.
+   */
+  private static class CommitAttempt implements Attempt<SnapshotMetadata> {
+    private final SnapshotBackend backend;
+    private final Snapshot snapshot;
+    private final SnapshotMetadataChange change;
+    private final Executor executor;
+    private byte[] contents;
+    private boolean first = true;
+
+    CommitAttempt(SnapshotBackend backend, Snapshot snapshot, SnapshotMetadataChange change,
+                  Executor executor) {
+      this.backend = backend;
+      this.snapshot = snapshot;
+      this.change = change;
+      this.executor = executor;
+    }
+
+    @Override
+    public Task<SnapshotMetadata> start() {
+      if (first) {
+        first = false;
+        // keep what is being committed, since the snapshot can't be read once it is closed.
+        try {
+          contents = snapshot.getSnapshotContents().readFully();
+        } catch (IOException e) {
+          Log.w(TAG, "Could not keep contents for retrying the commit", e);
+        }
+        return backend.commitAndClose(snapshot, change);
+      }
+
+      if (contents == null) {
+        return Tasks.forException(new IllegalStateException("Nothing to retry the commit with"));
+      }
+      final String filename = snapshot.getMetadata().getUniqueName();
+      return backend.open(filename, true)
+          .continueWithTask(executor, new Continuation<SnapshotsClient.DataOrConflict<Snapshot>, Task<SnapshotMetadata>>() {
+            @Override
+            public Task<SnapshotMetadata> then(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) throws Exception {
+              SnapshotsClient.DataOrConflict<Snapshot> result = task.getResult(ApiException.class);
+              if (result.isConflict()) {
+                backend.discardAndClose(result.getConflict().getSnapshot());
+                throw new IllegalStateException(filename + " changed while retrying the commit");
+              }
+              Snapshot reopened = result.getData();
+              reopened.getSnapshotContents().writeBytes(contents);
+              return backend.commitAndClose(reopened, change);
+            }
+          });
+    }
+  }
+
+  // Discards a snapshot the coordinator already has marked as open.
+  private Task<Void> discardAndCloseOpen(SnapshotBackend backend, Snapshot snapshot) {
+    final String filename = snapshot.getMetadata().getUniqueName();
+    setIsClosing(filename);
+    return backend.discardAndClose(snapshot)
+        .addOnCompleteListener(executor, new OnCompleteListener<Void>() {
+          @Override
+          public void onComplete(@NonNull Task<Void> task) {
+            setClosed(filename);
+          }
+        });
+  }
+
+  public Task<Void> discardAndClose(SnapshotsClient snapshotsClient, Snapshot snapshot) {
+    return discardAndClose(new SnapshotsClientBackend(snapshotsClient), snapshot);
+  }
+
+  public Task<Void> discardAndClose(final SnapshotBackend backend, final Snapshot snapshot) {
+
+    final String filename = snapshot.getMetadata().getUniqueName();
+
+    return setIsClosingTask(filename, snapshot).continueWithTask(executor, new Continuation<Void, Task<Void>>() {
       @Override
       public Task<Void> then(@NonNull Task<Void> task) throws Exception {
-        return snapshotsClient.discardAndClose(snapshot)
-            .addOnCompleteListener(new OnCompleteListener<Void>() {
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return backend.discardAndClose(snapshot)
+            .addOnCompleteListener(executor, new OnCompleteListener<Void>() {
               @Override
               public void onComplete(@NonNull Task<Void> task) {
                 Log.d(TAG, "Closed " + snapshot.getMetadata().getUniqueName());
@@ -237,7 +1348,8 @@ public class SnapshotCoordinator {
   }
 
   @NonNull
-  private OnCompleteListener<SnapshotsClient.DataOrConflict<Snapshot>> createOpenListener(final String filename) {
+  private OnCompleteListener<SnapshotsClient.DataOrConflict<Snapshot>> createOpenListener(final SnapshotBackend backend,
+                                                                                         final String filename) {
     return new OnCompleteListener<SnapshotsClient.DataOrConflict<Snapshot>>() {
       @Override
       public void onComplete(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) {
@@ -254,6 +1366,7 @@ public class SnapshotCoordinator {
           } else {
             Log.d(TAG, "Open successful: " + filename);
           }
+          setLeaseSnapshot(filename, backend, result);
         }
       }
     };
@@ -263,97 +1376,357 @@ public class SnapshotCoordinator {
   private Task<Void> setIsOpeningTask(String filename) {
     TaskCompletionSource<Void> source = new TaskCompletionSource<>();
 
-    if (isAlreadyOpen(filename)) {
-      source.setException(new IllegalStateException(filename + " is already open!"));
-    } else if (isAlreadyClosing(filename)) {
-      source.setException(new IllegalStateException(filename + " is current closing!"));
-    } else {
-      setIsOpening(filename);
-      source.setResult(null);
+    // check and mark under one lock, otherwise two threads can both see the file as closed.
+    synchronized (this) {
+      if (shutDown) {
+        source.setException(shutDownException());
+      } else if (isAlreadyOpen(filename)) {
+        source.setException(new FileInUseException(filename + " is already open!"));
+      } else if (isAlreadyClosing(filename)) {
+        source.setException(new FileInUseException(filename + " is current closing!"));
+      } else {
+        setIsOpening(filename, new Throwable("open of " + filename));
+        source.setResult(null);
+      }
     }
     return source.getTask();
   }
 
   @NonNull
-  private Task<Void> setIsClosingTask(String filename) {
+  private Task<Void> setIsClosingTask(String filename, Snapshot snapshot) {
     TaskCompletionSource<Void> source = new TaskCompletionSource<>();
 
-    if (!isAlreadyOpen(filename)) {
-      source.setException(new IllegalStateException(filename + " is already closed!"));
-    } else if (isAlreadyClosing(filename)) {
-      source.setException(new IllegalStateException(filename + " is current closing!"));
-    } else {
-      setIsClosing(filename);
-      source.setResult(null);
+    synchronized (this) {
+      Lease lost = reclaimed.get(filename);
+      if (lost != null && lost.snapshot == snapshot) {
+        // the file may be open again by someone else by now; this snapshot is stale.  The owner has
+        // now been told, so the lease need not be remembered any longer.
+        reclaimed.remove(filename);
+        source.setException(new IllegalStateException(filename
+            + " was reclaimed after its lease expired!"));
+      } else if (!isAlreadyOpen(filename)) {
+        source.setException(new IllegalStateException(filename + " is already closed!"));
+      } else if (isAlreadyClosing(filename)) {
+        source.setException(new IllegalStateException(filename + " is current closing!"));
+      } else {
+        setIsClosing(filename);
+        source.setResult(null);
+      }
     }
     return source.getTask();
   }
 
-  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotsClient snapshotsClient,
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotsClient snapshotsClient,
+                                                             String filename,
+                                                             boolean createIfNotFound) {
+    return open(new SnapshotsClientBackend(snapshotsClient), filename, createIfNotFound);
+  }
+
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotBackend backend,
                                                              final String filename,
                                                              final boolean createIfNotFound) {
 
-    return setIsOpeningTask(filename).continueWithTask(new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
+    return setIsOpeningTask(filename).continueWithTask(executor, new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
+      @Override
+      public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<Void> task) throws Exception {
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return withRetries("open", backend, filename, executor, new Attempt<SnapshotsClient.DataOrConflict<Snapshot>>() {
+          @Override
+          public Task<SnapshotsClient.DataOrConflict<Snapshot>> start() {
+            return backend.open(filename, createIfNotFound);
+          }
+        }).addOnCompleteListener(executor, createOpenListener(backend, filename));
+      }
+    });
+  }
+
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotsClient snapshotsClient,
+                                                             String filename,
+                                                             boolean createIfNotFound,
+                                                             Priority priority) {
+    return open(new SnapshotsClientBackend(snapshotsClient), filename, createIfNotFound, priority);
+  }
+
+  /**
+   * Opens the named file once it is closed.  Unlike the other open methods this does not fail if
+   * the file is already open; the open waits in line and runs in priority order.
+   *
+   * @param priority - the priority of the open, and of the work continuing from it.
+   */
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotBackend backend,
+                                                             final String filename,
+                                                             final boolean createIfNotFound,
+                                                             Priority priority) {
+    final Executor prioritized = getExecutor(priority);
+
+    return admit(filename, priority).continueWithTask(prioritized, new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
       @Override
       public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<Void> task) throws Exception {
-        return snapshotsClient.open(filename, createIfNotFound)
-            .addOnCompleteListener(createOpenListener(filename));
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return withRetries("open", backend, filename, prioritized, new Attempt<SnapshotsClient.DataOrConflict<Snapshot>>() {
+          @Override
+          public Task<SnapshotsClient.DataOrConflict<Snapshot>> start() {
+            return backend.open(filename, createIfNotFound);
+          }
+        }).addOnCompleteListener(prioritized, createOpenListener(backend, filename));
       }
     });
   }
 
-  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotsClient snapshotsClient,
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotsClient snapshotsClient,
+                                                             String filename,
+                                                             boolean createIfNotFound,
+                                                             int conflictPolicy) {
+    return open(new SnapshotsClientBackend(snapshotsClient), filename, createIfNotFound,
+        conflictPolicy);
+  }
+
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotBackend backend,
                                                              final String filename,
                                                              final boolean createIfNotFound,
                                                              final int conflictPolicy) {
 
-    return setIsOpeningTask(filename).continueWithTask(new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
+    return setIsOpeningTask(filename).continueWithTask(executor, new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
       @Override
       public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<Void> task) throws Exception {
-        return snapshotsClient.open(filename, createIfNotFound, conflictPolicy)
-            .addOnCompleteListener(createOpenListener(filename));
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return withRetries("open", backend, filename, executor, new Attempt<SnapshotsClient.DataOrConflict<Snapshot>>() {
+          @Override
+          public Task<SnapshotsClient.DataOrConflict<Snapshot>> start() {
+            return backend.open(filename, createIfNotFound, conflictPolicy);
+          }
+        }).addOnCompleteListener(executor, createOpenListener(backend, filename));
       }
     });
   }
 
-  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotsClient snapshotsClient,
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotsClient snapshotsClient,
+                                                             SnapshotMetadata snapshotMetadata) {
+    return open(new SnapshotsClientBackend(snapshotsClient), snapshotMetadata);
+  }
+
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotBackend backend,
                                                              final SnapshotMetadata snapshotMetadata) {
     final String filename = snapshotMetadata.getUniqueName();
 
-    return setIsOpeningTask(filename).continueWithTask(new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
+    return setIsOpeningTask(filename).continueWithTask(executor, new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
+      @Override
+      public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<Void> task) throws Exception {
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return withRetries("open", backend, filename, executor, new Attempt<SnapshotsClient.DataOrConflict<Snapshot>>() {
+          @Override
+          public Task<SnapshotsClient.DataOrConflict<Snapshot>> start() {
+            return backend.open(snapshotMetadata);
+          }
+        }).addOnCompleteListener(executor, createOpenListener(backend, filename));
+      }
+    });
+  }
+
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotsClient snapshotsClient,
+                                                             SnapshotMetadata snapshotMetadata,
+                                                             Priority priority) {
+    return open(new SnapshotsClientBackend(snapshotsClient), snapshotMetadata, priority);
+  }
+
+  /**
+   * Opens the snapshot once its file is closed.  Unlike the other open methods this does not fail
+   * if the file is already open; the open waits in line and runs in priority order.
+   *
+   * @param priority - the priority of the open, and of the work continuing from it.
+   */
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotBackend backend,
+                                                             final SnapshotMetadata snapshotMetadata,
+                                                             Priority priority) {
+    final String filename = snapshotMetadata.getUniqueName();
+    final Executor prioritized = getExecutor(priority);
+
+    return admit(filename, priority).continueWithTask(prioritized, new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
       @Override
       public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<Void> task) throws Exception {
-        return snapshotsClient.open(snapshotMetadata)
-            .addOnCompleteListener(createOpenListener(filename));
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return withRetries("open", backend, filename, prioritized, new Attempt<SnapshotsClient.DataOrConflict<Snapshot>>() {
+          @Override
+          public Task<SnapshotsClient.DataOrConflict<Snapshot>> start() {
+            return backend.open(snapshotMetadata);
+          }
+        }).addOnCompleteListener(prioritized, createOpenListener(backend, filename));
       }
     });
   }
 
-  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotsClient snapshotsClient,
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotsClient snapshotsClient,
+                                                             SnapshotMetadata snapshotMetadata,
+                                                             int conflictPolicy) {
+    return open(new SnapshotsClientBackend(snapshotsClient), snapshotMetadata, conflictPolicy);
+  }
+
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(final SnapshotBackend backend,
                                                              final SnapshotMetadata snapshotMetadata,
                                                              final int conflictPolicy) {
     final String filename = snapshotMetadata.getUniqueName();
 
-    return setIsOpeningTask(filename).continueWithTask(new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
+    return setIsOpeningTask(filename).continueWithTask(executor, new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
       @Override
       public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<Void> task) throws Exception {
-        return snapshotsClient.open(snapshotMetadata, conflictPolicy)
-            .addOnCompleteListener(createOpenListener(filename));
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return withRetries("open", backend, filename, executor, new Attempt<SnapshotsClient.DataOrConflict<Snapshot>>() {
+          @Override
+          public Task<SnapshotsClient.DataOrConflict<Snapshot>> start() {
+            return backend.open(snapshotMetadata, conflictPolicy);
+          }
+        }).addOnCompleteListener(executor, createOpenListener(backend, filename));
       }
     });
   }
 
-  public Task<SnapshotMetadata> commitAndClose(final SnapshotsClient snapshotsClient,
+  public Task<ReadOnlySnapshot> openReadOnly(SnapshotsClient snapshotsClient,
+                                             String filename,
+                                             Priority priority) {
+    return openReadOnly(new SnapshotsClientBackend(snapshotsClient), filename, priority);
+  }
+
+  /**
+   * Reads the named file without keeping it open.  All readers of a file that arrive while a read
+   * of it is in progress share that read, so any number of them cost a single open; a writer
+   * still gets the file to itself, and a read waits in line behind it like any other open.
+   * <p/>
+   * Unlike the other opens, the file is not created if it does not exist.
+   *
+   * @param priority - the priority of the read.  Readers joining a read in progress keep its
+   *                 place in line.
+   */
+  public Task<ReadOnlySnapshot> openReadOnly(final SnapshotBackend backend,
+                                             final String filename,
+                                             Priority priority) {
+    return sharedRead(backend, filename, priority,
+        new Attempt<SnapshotsClient.DataOrConflict<Snapshot>>() {
+          @Override
+          public Task<SnapshotsClient.DataOrConflict<Snapshot>> start() {
+            return backend.open(filename, false);
+          }
+        });
+  }
+
+  public Task<ReadOnlySnapshot> openReadOnly(SnapshotsClient snapshotsClient,
+                                             SnapshotMetadata snapshotMetadata,
+                                             Priority priority) {
+    return openReadOnly(new SnapshotsClientBackend(snapshotsClient), snapshotMetadata, priority);
+  }
+
+  /**
+   * Reads the snapshot without keeping it open, sharing the read with other readers of the same
+   * file.  See {@link #openReadOnly(SnapshotBackend, String, Priority)}.
+   */
+  public Task<ReadOnlySnapshot> openReadOnly(final SnapshotBackend backend,
+                                             final SnapshotMetadata snapshotMetadata,
+                                             Priority priority) {
+    return sharedRead(backend, snapshotMetadata.getUniqueName(), priority,
+        new Attempt<SnapshotsClient.DataOrConflict<Snapshot>>() {
+          @Override
+          public Task<SnapshotsClient.DataOrConflict<Snapshot>> start() {
+            return backend.open(snapshotMetadata);
+          }
+        });
+  }
+
+  private Task<ReadOnlySnapshot> sharedRead(final SnapshotBackend backend,
+                                            final String filename,
+                                            Priority priority,
+                                            final Attempt<SnapshotsClient.DataOrConflict<Snapshot>> open) {
+    final TaskCompletionSource<ReadOnlySnapshot> source;
+    synchronized (this) {
+      Task<ReadOnlySnapshot> shared = sharedReads.get(filename);
+      if (shared != null) {
+        metrics.increment("read.shared");
+        return shared;
+      }
+      source = new TaskCompletionSource<>();
+      sharedReads.put(filename, source.getTask());
+    }
+    metrics.increment("read.opens");
+
+    final Executor prioritized = getExecutor(priority);
+    admit(filename, priority).continueWithTask(prioritized, new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
+      @Override
+      public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<Void> task) throws Exception {
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return withRetries("open", backend, filename, prioritized, open)
+            .addOnCompleteListener(prioritized, createOpenListener(backend, filename));
+      }
+    }).addOnCompleteListener(prioritized, new OnCompleteListener<SnapshotsClient.DataOrConflict<Snapshot>>() {
+      @Override
+      public void onComplete(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) {
+        // readers arriving from now on need a read of their own; this one is done.
+        synchronized (SnapshotCoordinator.this) {
+          sharedReads.remove(filename);
+        }
+        if (!task.isSuccessful()) {
+          // the open listener has already closed the file.
+          source.setException(task.getException());
+          return;
+        }
+
+        SnapshotsClient.DataOrConflict<Snapshot> result = task.getResult();
+        Snapshot snapshot = result.isConflict()
+            ? result.getConflict().getSnapshot() : result.getData();
+        try {
+          source.setResult(new ReadOnlySnapshot(snapshot.getMetadata().freeze(),
+              snapshot.getSnapshotContents().readFully(), result.isConflict()));
+        } catch (IOException e) {
+          source.setException(e);
+        } finally {
+          discardAndCloseOpen(backend, snapshot);
+        }
+      }
+    });
+    return source.getTask();
+  }
+
+  public Task<SnapshotMetadata> commitAndClose(SnapshotsClient snapshotsClient,
+                                               Snapshot snapshot,
+                                               SnapshotMetadataChange snapshotMetadataChange) {
+    return commitAndClose(new SnapshotsClientBackend(snapshotsClient), snapshot,
+        snapshotMetadataChange);
+  }
+
+  public Task<SnapshotMetadata> commitAndClose(final SnapshotBackend backend,
                                                final Snapshot snapshot,
                                                final SnapshotMetadataChange snapshotMetadataChange) {
 
     final String filename = snapshot.getMetadata().getUniqueName();
 
-    return setIsClosingTask(filename).continueWithTask(new Continuation<Void, Task<SnapshotMetadata>>() {
+    return setIsClosingTask(filename, snapshot).continueWithTask(executor, new Continuation<Void, Task<SnapshotMetadata>>() {
       @Override
       public Task<SnapshotMetadata> then(@NonNull Task<Void> task) throws Exception {
-        return snapshotsClient.commitAndClose(snapshot, snapshotMetadataChange)
-            .addOnCompleteListener(new OnCompleteListener<SnapshotMetadata>() {
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return withRetries("commit", backend, filename, executor,
+            new CommitAttempt(backend, snapshot, snapshotMetadataChange, executor))
+            .addOnCompleteListener(executor, new OnCompleteListener<SnapshotMetadata>() {
               @Override
               public void onComplete(@NonNull Task<SnapshotMetadata> task) {
                 // even if commit and close fails, the file is closed.
@@ -366,29 +1739,46 @@ public class SnapshotCoordinator {
     });
   }
 
-  public Task<String> delete(final SnapshotsClient snapshotsClient,
+  public Task<String> delete(SnapshotsClient snapshotsClient, SnapshotMetadata snapshotMetadata) {
+    return delete(new SnapshotsClientBackend(snapshotsClient), snapshotMetadata);
+  }
+
+  public Task<String> delete(final SnapshotBackend backend,
                              final SnapshotMetadata snapshotMetadata) {
 
     final String filename = snapshotMetadata.getUniqueName();
     TaskCompletionSource<Void> source = new TaskCompletionSource<>();
 
-    if (isAlreadyOpen(filename)) {
-      source.setException(new IllegalStateException(filename + " is still open!"));
-    } else if (isAlreadyClosing(filename)) {
-      source.setException(new IllegalStateException(filename + " is current closing!"));
-    } else {
-      setIsClosing(filename);
-      source.setResult(null);
+    synchronized (this) {
+      if (shutDown) {
+        source.setException(shutDownException());
+      } else if (isAlreadyOpen(filename)) {
+        source.setException(new FileInUseException(filename + " is still open!"));
+      } else if (isAlreadyClosing(filename)) {
+        source.setException(new FileInUseException(filename + " is current closing!"));
+      } else {
+        setIsClosing(filename);
+        source.setResult(null);
+      }
     }
 
-    return source.getTask().continueWithTask(new Continuation<Void, Task<String>>() {
+    return source.getTask().continueWithTask(executor, new Continuation<Void, Task<String>>() {
       @Override
       public Task<String> then(@NonNull Task<Void> task) throws Exception {
-        return snapshotsClient.delete(snapshotMetadata)
-            .addOnCompleteListener(new OnCompleteListener<String>() {
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
+        }
+        return withRetries("delete", backend, filename, executor, new Attempt<String>() {
+          @Override
+          public Task<String> start() {
+            return backend.delete(snapshotMetadata);
+          }
+        }).addOnCompleteListener(executor, new OnCompleteListener<String>() {
               @Override
               public void onComplete(@NonNull Task<String> task) {
                 // deleted files are closed.
+                contentCache.invalidate(filename);
                 setClosed(filename);
               }
             });
@@ -396,61 +1786,39 @@ public class SnapshotCoordinator {
     });
   }
 
-  public Task<SnapshotsClient.DataOrConflict<Snapshot>> resolveConflict(final SnapshotsClient snapshotsClient,
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> resolveConflict(SnapshotsClient snapshotsClient,
+                                                                        String conflictId,
+                                                                        Snapshot snapshot) {
+    return resolveConflict(new SnapshotsClientBackend(snapshotsClient), conflictId, snapshot);
+  }
+
+  /**
+   * Resolves a conflict with the given version.  If the snapshot is the one holding the file open,
+   * as when the file was opened again to resolve it, the resolve takes over that open; otherwise
+   * the file must be closed, and is opened by the resolve.
+   */
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> resolveConflict(final SnapshotBackend backend,
                                                                         final String conflictId,
                                                                         final Snapshot snapshot) {
     final String filename = snapshot.getMetadata().getUniqueName();
 
-    return setIsOpeningTask(filename).continueWithTask(new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
+    Task<Void> claim;
+    synchronized (this) {
+      Lease lease = leases.get(filename);
+      claim = lease != null && (lease.snapshot == snapshot || lease.conflicting == snapshot)
+          && !isAlreadyClosing(filename)
+          ? Tasks.forResult((Void) null) : setIsOpeningTask(filename);
+    }
+    return claim.continueWithTask(executor, new Continuation<Void, Task<SnapshotsClient.DataOrConflict<Snapshot>>>() {
       @Override
       public Task<SnapshotsClient.DataOrConflict<Snapshot>> then(@NonNull Task<Void> task) throws Exception {
-        return snapshotsClient.resolveConflict(conflictId, snapshot)
-            .addOnCompleteListener(new OnCompleteListener<SnapshotsClient.DataOrConflict<Snapshot>>() {
-              @Override
-              public void onComplete(@NonNull Task<SnapshotsClient.DataOrConflict<Snapshot>> task) {
-
-                if (!task.isSuccessful()) {
-                  setClosed(filename);
-                }
-              }
-            });
-      }
-    });
-  }
-
-  private class CountDownTask {
-    private final CountDownLatch latch;
-    private boolean canceled;
-
-    private final Status Success = new Status(CommonStatusCodes.SUCCESS);
-    private final Status Canceled = new Status(CommonStatusCodes.CANCELED);
-
-    public CountDownTask(CountDownLatch latch) {
-      this.latch = latch;
-      canceled = false;
-    }
-
-    @NonNull
-    public Result await() {
-      if (!canceled && latch != null) {
-        try {
-          latch.await();
-        } catch (InterruptedException e) {
-          return new Result() {
-            @Override
-            public Status getStatus() {
-              return Canceled;
-            }
-          };
+        if (!task.isSuccessful()) {
+          // the file could not be claimed; leave it alone.
+          throw task.getException();
         }
+        return backend.resolveConflict(conflictId, snapshot)
+            .addOnCompleteListener(executor, createOpenListener(backend, filename));
       }
-      return new Result() {
-        @Override
-        public Status getStatus() {
-          return canceled ? Canceled : Success;
-        }
-      };
-    }
-
+    });
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,198 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A point-in-time view of a SnapshotCoordinator, taken with
+ * {@link SnapshotCoordinator#getDiagnostics()}.  All of the per-file state is read under the
+ * coordinator's lock, so it is consistent; the counters are read right after.
+ */
+public class SnapshotDiagnostics {
+
+  public enum FileState {
+    /** The file is claimed, but the backend has not returned the snapshot yet. */
+    OPENING,
+    /** The snapshot is open. */
+    OPEN,
+    /** A commit, discard or delete is under way. */
+    CLOSING
+  }
+
+  /**
+   * What the coordinator knows about one file that is not closed.
+   */
+  public static class FileInfo {
+    public final String filename;
+    public final FileState state;
+    // since the file was claimed, and since the coordinator last saw it used.
+    public final long ageMillis;
+    public final long idleMillis;
+    // callers of waitForClosed, and opens waiting in line for the file.
+    public final int closeWaiters;
+    public final int queuedOpens;
+    public final boolean sharedReadInProgress;
+    // the stack trace of where the file was opened.
+    public final String openedAt;
+
+    FileInfo(String filename, FileState state, long ageMillis, long idleMillis,
+             int closeWaiters, int queuedOpens, boolean sharedReadInProgress, String openedAt) {
+      this.filename = filename;
+      this.state = state;
+      this.ageMillis = ageMillis;
+      this.idleMillis = idleMillis;
+      this.closeWaiters = closeWaiters;
+      this.queuedOpens = queuedOpens;
+      this.sharedReadInProgress = sharedReadInProgress;
+      this.openedAt = openedAt;
+    }
+
+    JSONObject toJson() throws JSONException {
+      JSONObject obj = new JSONObject();
+      obj.put("filename", filename);
+      obj.put("state", state.name());
+      obj.put("ageMillis", ageMillis);
+      obj.put("idleMillis", idleMillis);
+      obj.put("closeWaiters", closeWaiters);
+      obj.put("queuedOpens", queuedOpens);
+      obj.put("sharedReadInProgress", sharedReadInProgress);
+      obj.put("openedAt", openedAt);
+      return obj;
+    }
+  }
+
+  // a hash of the account id, so that reports from different accounts can be told apart without
+  // the id itself ending up in logs.  Empty for the coordinator that is not tied to an account.
+  public final String accountHash;
+  public final long takenAtMillis;
+  public final boolean shutDown;
+  public final List<FileInfo> files;
+  public final long leaseTimeoutMillis;
+  public final int leakReports;
+
+  public final CircuitBreaker.State breakerState;
+  public final int consecutiveFailures;
+
+  public final long cacheHits;
+  public final long cacheMisses;
+  public final long cacheBytes;
+
+  public final Map<String, Long> counters;
+
+  SnapshotDiagnostics(String account, long takenAtMillis, boolean shutDown, List<FileInfo> files,
+                      long leaseTimeoutMillis, int leakReports, CircuitBreaker breaker,
+                      SnapshotContentCache cache, SnapshotMetrics metrics) {
+    this.accountHash = hashAccount(account);
+    this.takenAtMillis = takenAtMillis;
+    this.shutDown = shutDown;
+    this.files = Collections.unmodifiableList(files);
+    this.leaseTimeoutMillis = leaseTimeoutMillis;
+    this.leakReports = leakReports;
+    this.breakerState = breaker.getState();
+    this.consecutiveFailures = breaker.getConsecutiveFailures();
+    this.cacheHits = cache.getHitCount();
+    this.cacheMisses = cache.getMissCount();
+    this.cacheBytes = cache.getSizeBytes();
+    this.counters = Collections.unmodifiableMap(metrics.snapshot());
+  }
+
+  private static String hashAccount(String account) {
+    if (account.isEmpty()) {
+      return "";
+    }
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(account.getBytes(Charset.forName("UTF-8")));
+      StringBuilder hex = new StringBuilder();
+      // the first 8 bytes are plenty to tell a device's accounts apart.
+      for (int i = 0; i < 8; i++) {
+        hex.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      // every Java platform is required to have SHA-256.
+      throw new RuntimeException("SHA-256 is not available.", ex);
+    }
+  }
+
+  /**
+   * Returns the file that has been stuck the longest: the one idle the longest among those that
+   * others are waiting for, or null if nobody is waiting.
+   */
+  public FileInfo getMostWedgedFile() {
+    FileInfo wedged = null;
+    for (FileInfo file : files) {
+      if (file.closeWaiters + file.queuedOpens == 0) {
+        continue;
+      }
+      if (wedged == null || file.idleMillis > wedged.idleMillis) {
+        wedged = file;
+      }
+    }
+    return wedged;
+  }
+
+  public JSONObject toJson() {
+    try {
+      JSONArray fileArray = new JSONArray();
+      for (FileInfo file : files) {
+        fileArray.put(file.toJson());
+      }
+
+      JSONObject breaker = new JSONObject();
+      breaker.put("state", breakerState.name());
+      breaker.put("consecutiveFailures", consecutiveFailures);
+
+      JSONObject cache = new JSONObject();
+      cache.put("hits", cacheHits);
+      cache.put("misses", cacheMisses);
+      cache.put("bytes", cacheBytes);
+
+      JSONObject counterObj = new JSONObject();
+      for (Map.Entry<String, Long> entry : counters.entrySet()) {
+        counterObj.put(entry.getKey(), entry.getValue());
+      }
+
+      JSONObject obj = new JSONObject();
+      obj.put("accountHash", accountHash);
+      obj.put("takenAtMillis", takenAtMillis);
+      obj.put("shutDown", shutDown);
+      obj.put("leaseTimeoutMillis", leaseTimeoutMillis);
+      obj.put("leakReports", leakReports);
+      obj.put("files", fileArray);
+      obj.put("circuitBreaker", breaker);
+      obj.put("contentCache", cache);
+      obj.put("counters", counterObj);
+      return obj;
+    } catch (JSONException ex) {
+      // only happens for non-finite numbers, which there are none of.
+      throw new RuntimeException("Error converting diagnostics to JSON.", ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return toJson().toString();
+  }
+}
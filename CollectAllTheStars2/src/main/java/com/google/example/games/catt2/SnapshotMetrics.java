@@ -0,0 +1,70 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters describing what the SnapshotCoordinator has been doing.  Names are of the form
+ * "operation.event", for example "open.attempts" or "commit.retries".
+ */
+public class SnapshotMetrics {
+
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+  public void increment(String name) {
+    add(name, 1);
+  }
+
+  public void add(String name, long delta) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    counter.addAndGet(delta);
+  }
+
+  public long get(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0 : counter.get();
+  }
+
+  /**
+   * Returns a copy of all counters, sorted by name.
+   */
+  public Map<String, Long> snapshot() {
+    Map<String, Long> copy = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      copy.put(entry.getKey(), entry.getValue().get());
+    }
+    return copy;
+  }
+
+  public void reset() {
+    counters.clear();
+  }
+
+  @Override
+  public String toString() {
+    return snapshot().toString();
+  }
+}
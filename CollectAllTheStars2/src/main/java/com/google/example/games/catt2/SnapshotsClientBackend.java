@@ -0,0 +1,116 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import android.content.Intent;
+
+import com.google.android.gms.games.AnnotatedData;
+import com.google.android.gms.games.SnapshotsClient;
+import com.google.android.gms.games.snapshot.Snapshot;
+import com.google.android.gms.games.snapshot.SnapshotContents;
+import com.google.android.gms.games.snapshot.SnapshotMetadata;
+import com.google.android.gms.games.snapshot.SnapshotMetadataBuffer;
+import com.google.android.gms.games.snapshot.SnapshotMetadataChange;
+import com.google.android.gms.tasks.Task;
+
+/**
+ * SnapshotBackend that forwards every call to a SnapshotsClient.
+ */
+public class SnapshotsClientBackend implements SnapshotBackend {
+
+  private final SnapshotsClient snapshotsClient;
+
+  public SnapshotsClientBackend(SnapshotsClient snapshotsClient) {
+    this.snapshotsClient = snapshotsClient;
+  }
+
+  @Override
+  public Task<Integer> getMaxDataSize() {
+    return snapshotsClient.getMaxDataSize();
+  }
+
+  @Override
+  public Task<Integer> getMaxCoverImageSize() {
+    return snapshotsClient.getMaxCoverImageSize();
+  }
+
+  @Override
+  public Task<Intent> getSelectSnapshotIntent(String title,
+                                              boolean allowAddButton,
+                                              boolean allowDelete,
+                                              int maxSnapshots) {
+    return snapshotsClient.getSelectSnapshotIntent(title, allowAddButton, allowDelete,
+        maxSnapshots);
+  }
+
+  @Override
+  public Task<AnnotatedData<SnapshotMetadataBuffer>> load(boolean forceReload) {
+    return snapshotsClient.load(forceReload);
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(String filename,
+                                                             boolean createIfNotFound) {
+    return snapshotsClient.open(filename, createIfNotFound);
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(String filename,
+                                                             boolean createIfNotFound,
+                                                             int conflictPolicy) {
+    return snapshotsClient.open(filename, createIfNotFound, conflictPolicy);
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotMetadata snapshotMetadata) {
+    return snapshotsClient.open(snapshotMetadata);
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> open(SnapshotMetadata snapshotMetadata,
+                                                             int conflictPolicy) {
+    return snapshotsClient.open(snapshotMetadata, conflictPolicy);
+  }
+
+  @Override
+  public Task<SnapshotMetadata> commitAndClose(Snapshot snapshot,
+                                               SnapshotMetadataChange snapshotMetadataChange) {
+    return snapshotsClient.commitAndClose(snapshot, snapshotMetadataChange);
+  }
+
+  @Override
+  public Task<Void> discardAndClose(Snapshot snapshot) {
+    return snapshotsClient.discardAndClose(snapshot);
+  }
+
+  @Override
+  public Task<String> delete(SnapshotMetadata snapshotMetadata) {
+    return snapshotsClient.delete(snapshotMetadata);
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> resolveConflict(String conflictId,
+                                                                        Snapshot snapshot) {
+    return snapshotsClient.resolveConflict(conflictId, snapshot);
+  }
+
+  @Override
+  public Task<SnapshotsClient.DataOrConflict<Snapshot>> resolveConflict(String conflictId,
+                                                                        String snapshotId,
+                                                                        SnapshotMetadataChange snapshotMetadataChange,
+                                                                        SnapshotContents snapshotContents) {
+    return snapshotsClient.resolveConflict(conflictId, snapshotId, snapshotMetadataChange,
+        snapshotContents);
+  }
+}
@@ -0,0 +1,177 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Overlaps the steps of a cold start, and records how long each one took.
+ * <p>
+ * Left to callbacks, startup runs one step after another: sign in, create the client, fetch the
+ * snapshot list, and only then open a snapshot.  The activity tells the orchestrator when the
+ * account and the snapshot the player was last on become known, from whichever finishes first;
+ * as soon as it has both, the snapshot is read ahead of time through the {@link Prefetcher},
+ * while the snapshot list is still on its way.  A load of that snapshot then finds it already
+ * read, or joins the read in progress.
+ * <p>
+ * Each phase is timed from when the orchestrator was created, and the whole timeline is logged
+ * once the game is playable.  All methods must be called on the main thread.
+ */
+public class StartupOrchestrator {
+
+  private static final String TAG = "StartupOrchestrator";
+
+  // Phases of startup, in the order they usually start.
+  public static final String PHASE_LOCAL_COPY = "localCopy";
+  public static final String PHASE_SIGN_IN = "signIn";
+  public static final String PHASE_CLIENT = "client";
+  public static final String PHASE_SNAPSHOT_LIST = "snapshotList";
+  public static final String PHASE_PREFETCH = "prefetch";
+  public static final String PHASE_CLOUD_LOAD = "cloudLoad";
+
+  /**
+   * Reads a snapshot ahead of time, so a later load of it does not wait on the network.
+   */
+  public interface Prefetcher {
+    Task<SaveGame> prefetch(String saveName);
+  }
+
+  // When a phase started and ended, relative to the start of startup; -1 if it has not ended.
+  private static class Phase {
+    final long startMillis;
+    long endMillis = -1;
+
+    Phase(long startMillis) {
+      this.startMillis = startMillis;
+    }
+  }
+
+  private final Prefetcher mPrefetcher;
+  private final long mStartedAtMillis = SystemClock.elapsedRealtime();
+  private final Map<String, Phase> mTimeline = new LinkedHashMap<>();
+
+  private String mAccount;
+  // the snapshot the player was last on, and the account it belongs to.
+  private String mSaveName;
+  private String mSaveNameAccount;
+  private boolean mPrefetchStarted = false;
+  private long mPlayableMillis = -1;
+
+  public StartupOrchestrator(Prefetcher prefetcher) {
+    mPrefetcher = prefetcher;
+  }
+
+  /**
+   * Records that a phase started.  Only the first start of each phase counts.
+   */
+  public void begin(String phase) {
+    if (!mTimeline.containsKey(phase)) {
+      mTimeline.put(phase, new Phase(elapsed()));
+    }
+  }
+
+  /**
+   * Records that a phase ended.  Only the first end of each phase counts.
+   */
+  public void end(String phase) {
+    Phase entry = mTimeline.get(phase);
+    if (entry != null && entry.endMillis < 0) {
+      entry.endMillis = elapsed();
+    }
+  }
+
+  /**
+   * Records that the player is signed in to the account, and the snapshot client is ready.
+   */
+  public void onAccountKnown(String account) {
+    mAccount = account;
+    maybePrefetch();
+  }
+
+  /**
+   * Records which of the account's snapshots the player is most likely to load.
+   */
+  public void onSaveNameKnown(String account, String saveName) {
+    mSaveNameAccount = account;
+    mSaveName = saveName;
+    maybePrefetch();
+  }
+
+  /**
+   * Records that the player can play, and logs the timeline the first time.
+   */
+  public void onPlayable() {
+    if (mPlayableMillis >= 0) {
+      return;
+    }
+    mPlayableMillis = elapsed();
+    Log.i(TAG, "Playable after " + mPlayableMillis + "ms: " + this);
+  }
+
+  public boolean isPlayable() {
+    return mPlayableMillis >= 0;
+  }
+
+  private void maybePrefetch() {
+    if (mPrefetchStarted || mAccount == null || mSaveName == null || isPlayable()) {
+      return;
+    }
+    if (!mAccount.equals(mSaveNameAccount)) {
+      // someone else signed in; their snapshot names are unknown.
+      return;
+    }
+    mPrefetchStarted = true;
+    Log.d(TAG, "Prefetching " + mSaveName);
+    begin(PHASE_PREFETCH);
+    mPrefetcher.prefetch(mSaveName).addOnCompleteListener(new OnCompleteListener<SaveGame>() {
+      @Override
+      public void onComplete(@NonNull Task<SaveGame> task) {
+        if (!task.isSuccessful()) {
+          // the load will try again for itself.
+          Log.d(TAG, "Prefetch failed", task.getException());
+        }
+        end(PHASE_PREFETCH);
+      }
+    });
+  }
+
+  private long elapsed() {
+    return SystemClock.elapsedRealtime() - mStartedAtMillis;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder("{");
+    for (Map.Entry<String, Phase> entry : mTimeline.entrySet()) {
+      if (out.length() > 1) {
+        out.append(", ");
+      }
+      Phase phase = entry.getValue();
+      out.append(entry.getKey()).append(": ").append(phase.startMillis).append('-')
+          .append(phase.endMillis < 0 ? "?" : String.valueOf(phase.endMillis)).append("ms");
+    }
+    return out.append('}').toString();
+  }
+}
@@ -0,0 +1,377 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.google.android.gms.common.images.ImageManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Keeps small copies of snapshot cover images, so the snapshot list does not load and decode the
+ * full-size covers every time a row is shown.
+ * <p>
+ * Thumbnails are scaled down to the width they are shown at, and kept in two tiers: a memory LRU
+ * sized by bitmap bytes, shared by the whole process so reopening the list finds them there, and
+ * JPEG files in the cache directory keyed by the cover's URI and the snapshot's last-modified
+ * time, so a cover that changes is fetched again.  Covers in neither tier are fetched with
+ * {@link ImageManager} and scaled down before they are kept.
+ * <p>
+ * Reading, decoding and scaling happen on the cache's own thread.  Each load returns a
+ * {@link Request} that the caller cancels when the view is rebound or scrolled away, so a late
+ * thumbnail never lands in a view now showing another row.  {@link #load} must be called on the
+ * main thread.
+ */
+public class ThumbnailCache {
+
+  private static final String TAG = "ThumbnailCache";
+
+  private static final String DIRECTORY = "thumbnails";
+  private static final int JPEG_QUALITY = 85;
+  private static final long MAX_DISK_BYTES = 4 * 1024 * 1024;
+
+  private static ThumbnailCache instance;
+
+  /**
+   * A thumbnail on its way to a view.
+   */
+  public static class Request {
+    final ImageView view;
+    final Uri uri;
+    final String key;
+    final int width;
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    // keeps the listener alive while the image manager is fetching.
+    ImageManager.OnImageLoadedListener listener;
+
+    Request(ImageView view, Uri uri, String key, int width) {
+      this.view = view;
+      this.uri = uri;
+      this.key = key;
+      this.width = width;
+    }
+
+    /**
+     * Stops the thumbnail from being set on the view.  Work already started is still finished and
+     * cached.
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * Returns true once the thumbnail has been set, or could not be loaded.
+     */
+    public boolean isDone() {
+      return done;
+    }
+  }
+
+  private final ImageManager imageManager;
+  private final File directory;
+  private final LruCache<String, Bitmap> memory;
+  private final ScheduledThreadPoolExecutor executor;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  /**
+   * Returns the process's thumbnail cache, creating it if needed.
+   */
+  public static synchronized ThumbnailCache getInstance(Context context) {
+    if (instance == null) {
+      Context app = context.getApplicationContext();
+      // an eighth of the heap would crowd out the game; a sixteenth holds dozens of covers.
+      int memoryBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16);
+      instance = new ThumbnailCache(ImageManager.create(app),
+          new File(app.getCacheDir(), DIRECTORY), memoryBytes);
+    }
+    return instance;
+  }
+
+  ThumbnailCache(ImageManager imageManager, File directory, int memoryBytes) {
+    this.imageManager = imageManager;
+    this.directory = directory;
+    this.memory = new LruCache<String, Bitmap>(memoryBytes) {
+      @Override
+      protected int sizeOf(String key, Bitmap value) {
+        return value.getRowBytes() * value.getHeight();
+      }
+    };
+    this.executor = new ScheduledThreadPoolExecutor(1);
+  }
+
+  /**
+   * Returns the key of a version of a cover, to pass to {@link #load}.  Worked out once per
+   * snapshot, so binding a row does not have to.
+   *
+   * @param uri          - the cover image, or null if the snapshot has none.
+   * @param lastModified - when the snapshot was last modified, to tell versions of the cover apart.
+   * @return the key, or null if there is no cover.
+   */
+  public static String keyOf(Uri uri, long lastModified) {
+    if (uri == null) {
+      return null;
+    }
+    // cover URIs are long and not safe as file names, so the key is a digest.
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest((uri + "\n" + lastModified).getBytes("UTF-8"));
+      StringBuilder key = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      // both are required on every Android device.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Shows the cover in the view, at the given width.  A thumbnail in memory is set right away;
+   * otherwise the view is cleared, and the thumbnail set when it has been read or fetched.  Each
+   * cover is kept at the width it was first shown at.
+   *
+   * @param uri   - the cover image, or null if the snapshot has none.
+   * @param key   - what {@link #keyOf(Uri, long)} returned for the cover.
+   * @param width - the width the cover is shown at, in pixels.
+   * @return the request to cancel if the view is reused, or null if there is nothing left to do.
+   */
+  public Request load(ImageView view, Uri uri, String key, int width) {
+    if (uri == null) {
+      view.setImageDrawable(null);
+      return null;
+    }
+    Bitmap cached = memory.get(key);
+    if (cached != null) {
+      view.setImageBitmap(cached);
+      return null;
+    }
+
+    view.setImageDrawable(null);
+    final Request request = new Request(view, uri, key, width);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (request.isCancelled()) {
+          return;
+        }
+        Bitmap thumbnail = readFromDisk(request);
+        if (thumbnail != null) {
+          memory.put(request.key, thumbnail);
+          deliver(request, thumbnail);
+        } else {
+          mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              fetch(request);
+            }
+          });
+        }
+      }
+    });
+    return request;
+  }
+
+  /**
+   * Forgets the thumbnails in memory, for example when the app is low on memory.  The files are
+   * kept.
+   */
+  public void trimMemory() {
+    memory.evictAll();
+  }
+
+  // Fetches the full-size cover from Play Games services.  Runs on the main thread.
+  private void fetch(final Request request) {
+    if (request.isCancelled()) {
+      return;
+    }
+    request.listener = new ImageManager.OnImageLoadedListener() {
+      @Override
+      public void onImageLoaded(Uri uri, final Drawable drawable, boolean isRequestedDrawable) {
+        request.listener = null;
+        if (drawable == null) {
+          Log.w(TAG, "Could not load cover " + uri);
+          request.done = true;
+          return;
+        }
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            Bitmap thumbnail = scale(drawable, request.width);
+            memory.put(request.key, thumbnail);
+            deliver(request, thumbnail);
+            writeToDisk(request.key, thumbnail);
+          }
+        });
+      }
+    };
+    imageManager.loadImage(request.listener, request.uri);
+  }
+
+  private void deliver(final Request request, final Bitmap thumbnail) {
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (!request.isCancelled()) {
+          request.view.setImageBitmap(thumbnail);
+        }
+        request.done = true;
+      }
+    });
+  }
+
+  // Decodes the file no larger than needed, then scales it to the width.  Runs on the executor.
+  private Bitmap readFromDisk(Request request) {
+    File file = new File(directory, request.key);
+    if (!file.exists()) {
+      return null;
+    }
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getPath(), options);
+    if (options.outWidth <= 0) {
+      Log.w(TAG, "Ignoring unreadable thumbnail " + file);
+      return null;
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = 1;
+    while (options.outWidth / (options.inSampleSize * 2) >= request.width) {
+      options.inSampleSize *= 2;
+    }
+    options.inPreferredConfig = Bitmap.Config.RGB_565;
+    Bitmap decoded = BitmapFactory.decodeFile(file.getPath(), options);
+    if (decoded == null) {
+      return null;
+    }
+    // a touch keeps the files in use from being trimmed first.
+    file.setLastModified(System.currentTimeMillis());
+    return scale(decoded, request.width);
+  }
+
+  private void writeToDisk(String key, Bitmap thumbnail) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Could not create " + directory);
+      return;
+    }
+    File file = new File(directory, key);
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not replace " + file);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write thumbnail", e);
+      tmp.delete();
+      return;
+    }
+    trimDisk();
+  }
+
+  // Deletes the least recently used files until the directory fits its budget.
+  private void trimDisk() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= MAX_DISK_BYTES) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    for (int i = 0; i < files.length && total > MAX_DISK_BYTES; i++) {
+      long length = files[i].length();
+      if (files[i].delete()) {
+        total -= length;
+      }
+    }
+  }
+
+  private static Bitmap scale(Drawable drawable, int width) {
+    if (drawable instanceof BitmapDrawable) {
+      Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+      Bitmap scaled = scale(bitmap, width);
+      if (scaled != bitmap) {
+        return scaled;
+      }
+      // the image manager keeps the bitmap in its own cache, so keep a copy rather than share it.
+      Bitmap copy = bitmap.copy(Bitmap.Config.RGB_565, false);
+      return copy != null ? copy : bitmap.copy(Bitmap.Config.ARGB_8888, false);
+    }
+    int sourceWidth = Math.max(1, drawable.getIntrinsicWidth());
+    int sourceHeight = Math.max(1, drawable.getIntrinsicHeight());
+    int targetWidth = Math.min(width, sourceWidth);
+    int targetHeight = Math.max(1, sourceHeight * targetWidth / sourceWidth);
+    Bitmap bitmap = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.RGB_565);
+    Canvas canvas = new Canvas(bitmap);
+    // the image manager shares the drawable, so draw a copy rather than moving its bounds.
+    Drawable copy = drawable.getConstantState() != null
+        ? drawable.getConstantState().newDrawable().mutate() : drawable;
+    copy.setBounds(0, 0, targetWidth, targetHeight);
+    copy.draw(canvas);
+    return bitmap;
+  }
+
+  // Covers are never scaled up; one no wider than the view is returned as it is, so callers
+  // that do not own the bitmap must copy it.
+  private static Bitmap scale(Bitmap bitmap, int width) {
+    if (bitmap.getWidth() <= width) {
+      return bitmap;
+    }
+    int height = Math.max(1, bitmap.getHeight() * width / bitmap.getWidth());
+    return Bitmap.createScaledBitmap(bitmap, width, height, true);
+  }
+}
@@ -0,0 +1,145 @@
+/* Copyright (C) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.games.catt2;
+
+import android.app.Activity;
+import android.widget.Button;
+import android.widget.TextView;
+
+/**
+ * The views of the world grid on the main screen, and what they currently show.
+ * <p>
+ * Views are looked up once, colors are resolved once, and the labels of a world are built the
+ * first time it is shown.  {@link #bind(SaveGame, int)} then only touches the views whose
+ * content actually changed, so redrawing the grid after a rating or a world switch does not
+ * allocate or lay out views that stay the same.
+ * <p>
+ * Must only be used on the main thread.
+ */
+public class WorldGridViewHolder {
+
+  private final TextView mWorldDisplay;
+  private final Button[] mLevelButtons;
+  private final Button mNextWorld;
+  private final Button mPrevWorld;
+
+  private final int mClearedColor;
+  private final int mUnclearedColor;
+  private final String mWorldPrefix;
+
+  private final int mWorldMin;
+  private final int mWorldMax;
+  private final String[] mStarStrings;
+
+  // built the first time each world is shown, indexed by world - mWorldMin.
+  private final String[] mWorldTitles;
+  private final String[][] mLevelNames;
+  private final String[][][] mLabels;
+
+  // what the views show now; NOT_RENDERED until the first bind.
+  private static final int NOT_RENDERED = -1;
+  private int mRenderedWorld = NOT_RENDERED;
+  private final int[] mRenderedStars;
+
+  @SuppressWarnings("deprecation")
+  public WorldGridViewHolder(Activity activity, int[] levelButtonIds, int worldMin, int worldMax,
+                             String[] starStrings) {
+    mWorldDisplay = (TextView) activity.findViewById(R.id.world_display);
+    mLevelButtons = new Button[levelButtonIds.length];
+    for (int i = 0; i < levelButtonIds.length; i++) {
+      mLevelButtons[i] = (Button) activity.findViewById(levelButtonIds[i]);
+    }
+    mNextWorld = (Button) activity.findViewById(R.id.button_next_world);
+    mPrevWorld = (Button) activity.findViewById(R.id.button_prev_world);
+
+    mClearedColor = activity.getResources().getColor(R.color.ClearedLevelColor);
+    mUnclearedColor = activity.getResources().getColor(R.color.UnclearedLevelColor);
+    mWorldPrefix = activity.getString(R.string.world) + " ";
+
+    mWorldMin = worldMin;
+    mWorldMax = worldMax;
+    mStarStrings = starStrings;
+
+    int worlds = worldMax - worldMin + 1;
+    mWorldTitles = new String[worlds];
+    mLevelNames = new String[worlds][];
+    mLabels = new String[worlds][][];
+
+    mRenderedStars = new int[levelButtonIds.length];
+    invalidate();
+  }
+
+  /**
+   * Shows the given world of the game, touching only the views that change.
+   */
+  public void bind(SaveGame saveGame, int world) {
+    int index = world - mWorldMin;
+    if (mLabels[index] == null) {
+      buildWorld(world);
+    }
+    String[] levelNames = mLevelNames[index];
+    String[][] labels = mLabels[index];
+
+    boolean worldChanged = world != mRenderedWorld;
+    if (worldChanged) {
+      mWorldDisplay.setText(mWorldTitles[index]);
+      // disable world changing if we are at the end of the list.
+      mNextWorld.setEnabled(world < mWorldMax);
+      mPrevWorld.setEnabled(world > mWorldMin);
+    }
+
+    for (int i = 0; i < mLevelButtons.length; i++) {
+      int stars = saveGame.getLevelStars(levelNames[i]);
+      int renderedStars = mRenderedStars[i];
+      if (!worldChanged && stars == renderedStars) {
+        continue;
+      }
+      Button button = mLevelButtons[i];
+      button.setText(labels[i][stars]);
+      if (renderedStars == NOT_RENDERED || (stars > 0) != (renderedStars > 0)) {
+        button.setTextColor(stars > 0 ? mClearedColor : mUnclearedColor);
+      }
+      mRenderedStars[i] = stars;
+    }
+    mRenderedWorld = world;
+  }
+
+  /**
+   * Forgets what the views show, so the next bind rewrites all of them.
+   */
+  public void invalidate() {
+    mRenderedWorld = NOT_RENDERED;
+    for (int i = 0; i < mRenderedStars.length; i++) {
+      mRenderedStars[i] = NOT_RENDERED;
+    }
+  }
+
+  private void buildWorld(int world) {
+    int index = world - mWorldMin;
+    String[] levelNames = new String[mLevelButtons.length];
+    String[][] labels = new String[mLevelButtons.length][mStarStrings.length];
+    for (int i = 0; i < mLevelButtons.length; i++) {
+      int levelNo = i + 1; // levels are numbered from 1
+      levelNames[i] = world + "-" + levelNo;
+      for (int stars = 0; stars < mStarStrings.length; stars++) {
+        labels[i][stars] = levelNames[i] + "\n" + mStarStrings[stars];
+      }
+    }
+    mWorldTitles[index] = mWorldPrefix + world;
+    mLevelNames[index] = levelNames;
+    mLabels[index] = labels;
+  }
+}
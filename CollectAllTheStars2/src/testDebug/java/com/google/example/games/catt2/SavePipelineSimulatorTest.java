@@ -0,0 +1,55 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a few short player traces through the save pipeline on the local JVM.
+ * <p/>
+ * Run with {@code ./gradlew :CollectAllTheStars2:testDebugUnitTest}.
+ */
+public class SavePipelineSimulatorTest {
+
+  private FakeSnapshotBackend backend;
+
+  @Before
+  public void setUp() {
+    backend = new FakeSnapshotBackend(4, 42);
+  }
+
+  @After
+  public void tearDown() {
+    backend.shutdown();
+  }
+
+  @Test
+  public void everyRatingReachesTheCloud() throws InterruptedException {
+    backend.setConflictRate(0.1);
+
+    SavePipelineSimulator.Report report = new SavePipelineSimulator(
+        SnapshotCoordinator.forAccount("simulator"), backend)
+        .setTraces(4, 5000)
+        .run();
+
+    System.out.println(report);
+    assertTrue(report.toString(), report.commits > 0);
+    assertEquals(report.toString(), 0, report.lostProgress);
+  }
+}
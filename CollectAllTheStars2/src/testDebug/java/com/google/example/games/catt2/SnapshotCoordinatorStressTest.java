@@ -0,0 +1,73 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.example.games.catt2;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the coordinator stress harness against the in-memory backend on the local JVM.
+ * <p/>
+ * Run with {@code ./gradlew :CollectAllTheStars2:testDebugUnitTest}.
+ */
+public class SnapshotCoordinatorStressTest {
+
+  private FakeSnapshotBackend backend;
+
+  @Before
+  public void setUp() {
+    backend = new FakeSnapshotBackend(4, 42);
+  }
+
+  @After
+  public void tearDown() {
+    backend.shutdown();
+  }
+
+  @Test
+  public void fastBackendKeepsInvariants() throws InterruptedException {
+    SnapshotCoordinatorStressHarness.Report report = new SnapshotCoordinatorStressHarness(
+        SnapshotCoordinator.forAccount("stress-fast"), backend)
+        .setThreads(16)
+        .setFiles(4)
+        .setDurationMillis(3000)
+        .run();
+
+    System.out.println(report);
+    assertTrue(report.toString(), report.passed());
+  }
+
+  @Test
+  public void slowFlakyBackendKeepsInvariants() throws InterruptedException {
+    backend.setLatency(FakeSnapshotBackend.logNormalLatency(2000, 1.0))
+        .setFailureRate(0.05, CommonStatusCodes.NETWORK_ERROR)
+        .setConflictRate(0.1);
+
+    SnapshotCoordinatorStressHarness.Report report = new SnapshotCoordinatorStressHarness(
+        SnapshotCoordinator.forAccount("stress-flaky"), backend)
+        .setThreads(16)
+        .setFiles(4)
+        .setDurationMillis(3000)
+        .setStuckTimeoutMillis(15000)
+        .run();
+
+    System.out.println(report);
+    assertTrue(report.toString(), report.passed());
+  }
+}